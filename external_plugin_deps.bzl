@@ -8,3 +8,36 @@ def external_plugin_deps():
         artifact = "com.eclipsesource.j2v8:j2v8_linux_x86_64:4.8.0",
         sha1 = "dad0e7695388f99ab504fa9f259101394a78eb2f",
     )
+
+    maven_jar(
+        name = "org_mozilla_rhino",
+        artifact = "org.mozilla:rhino:1.7.10",
+        sha1 = "24650bd98b1041df2eb1be5cb64dd1ad5b2e7c55",
+    )
+
+    # Only needed by the benchmarks in javabench/.
+    JMH_VERSION = "1.21"
+
+    maven_jar(
+        name = "jmh_core",
+        artifact = "org.openjdk.jmh:jmh-core:" + JMH_VERSION,
+        sha1 = "442447101f63074c61063858033fbfde8a076873",
+    )
+
+    maven_jar(
+        name = "jmh_generator_annprocess",
+        artifact = "org.openjdk.jmh:jmh-generator-annprocess:" + JMH_VERSION,
+        sha1 = "7aac374614a8a76cad16b91f1a4419d31a7dcda3",
+    )
+
+    maven_jar(
+        name = "jopt_simple",
+        artifact = "net.sf.jopt-simple:jopt-simple:4.6",
+        sha1 = "306816fb57cf94f108a43c95731b08934dcae15c",
+    )
+
+    maven_jar(
+        name = "commons_math3",
+        artifact = "org.apache.commons:commons-math3:3.2",
+        sha1 = "ec2544ab27e110d2d431bdad7d538ed509b21e62",
+    )
@@ -14,13 +14,26 @@
 
 package com.googlesource.gerrit.plugins.scripting.rules;
 
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.scripting.rules.engines.EnginesModule;
+import org.eclipse.jgit.lib.Config;
 
 /** Bootstraps the Simple Submit Rules plugin */
 public class Module extends AbstractModule {
+  private final Config cfg;
+  private final String pluginName;
+
+  @Inject
+  Module(@GerritServerConfig Config cfg, @PluginName String pluginName) {
+    this.cfg = cfg;
+    this.pluginName = pluginName;
+  }
+
   @Override
   protected void configure() {
-    install(new EnginesModule());
+    install(new EnginesModule(cfg, pluginName));
   }
 }
@@ -0,0 +1,37 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.scripting.rules.api.ApiModule;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesWarmer;
+import org.eclipse.jgit.lib.Config;
+
+/** Bootstraps the plugin in the server, with its REST endpoints and event listeners. */
+public class ServerModule extends Module {
+  @Inject
+  ServerModule(@GerritServerConfig Config cfg, @PluginName String pluginName) {
+    super(cfg, pluginName);
+  }
+
+  @Override
+  protected void configure() {
+    super.configure();
+    install(new ApiModule());
+    install(RulesWarmer.module());
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.api;
+
+import static com.google.gerrit.server.config.ConfigResource.CONFIG_KIND;
+import static com.google.gerrit.server.project.ProjectResource.PROJECT_KIND;
+
+import com.google.gerrit.extensions.restapi.RestApiModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
+
+/** REST endpoints of the plugin. Not installed in the batch programs. */
+public class ApiModule extends RestApiModule {
+  @Override
+  protected void configure() {
+    post(PROJECT_KIND, "dry-run").to(DryRun.class);
+    get(CONFIG_KIND, "quarantined").to(ListQuarantined.class);
+
+    install(
+        new LifecycleModule() {
+          @Override
+          protected void configure() {
+            // Stops the threads of the dry runs.
+            listener().to(DryRun.class);
+          }
+        });
+  }
+}
@@ -0,0 +1,375 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.api;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.primitives.Longs;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.index.query.Predicate;
+import com.google.gerrit.index.query.QueryParseException;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.ProjectPermission;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder;
+import com.google.gerrit.server.query.change.ChangeQueryProcessor;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ProfilingChangeContext;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.InheritedRules;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesDryRun;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesResolver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Evaluates rules.js on changes of a project, without caching the results, and reports how long
+ * each evaluation took. Project owners can check that a new version of their rules is correct and
+ * fast enough before merging it into refs/meta/config.
+ *
+ * <p>The rules are either given in the request, or read at a revision of refs/meta/config (by
+ * default, the current one). The changes are evaluated concurrently, on a pool shared by all the
+ * dry runs of the server.
+ */
+@Singleton
+class DryRun implements RestModifyView<ProjectResource, DryRun.Input>, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static class Input {
+    /** Content of the rules.js file to evaluate, instead of the one of the project. */
+    String rules;
+    /** Revision of refs/meta/config to read the rules from, instead of the current one. */
+    String revision;
+    /** Query of the changes to evaluate, in the project. By default, the open changes. */
+    String query;
+    /** Maximum number of changes to evaluate. */
+    Integer limit;
+  }
+
+  static class Output {
+    String rules;
+    String rulesId;
+    int changes;
+    int timeouts;
+    int ruleErrors;
+    long callbacks;
+    /** The calls to the change object of all the evaluations, by callback. */
+    Map<String, CallbackInfo> callbackProfile;
+    LatencyInfo latency;
+    List<ChangeResult> results;
+  }
+
+  static class CallbackInfo {
+    long count;
+    long timeMicros;
+  }
+
+  /** Percentiles of the evaluation latencies, in microseconds. */
+  static class LatencyInfo {
+    long p50;
+    long p90;
+    long p99;
+    long max;
+  }
+
+  static class ChangeResult {
+    int change;
+    long latencyMicros;
+    int callbacks;
+    Map<String, CallbackInfo> callbackProfile;
+    Boolean timedOut;
+    List<RecordInfo> records;
+  }
+
+  static class RecordInfo {
+    String status;
+    List<RequirementInfo> requirements;
+  }
+
+  static class RequirementInfo {
+    String type;
+    String fallbackText;
+  }
+
+  private final PermissionBackend permissionBackend;
+  private final Provider<ChangeQueryBuilder> queryBuilder;
+  private final Provider<ChangeQueryProcessor> queryProcessor;
+  private final AccountCache accountCache;
+  private final RulesResolver rulesResolver;
+  private final RulesDryRun dryRun;
+  private final WorkQueue workQueue;
+  private final int threads;
+  private final int maxChanges;
+  private volatile ScheduledExecutorService executor;
+
+  @Inject
+  DryRun(
+      PermissionBackend permissionBackend,
+      Provider<ChangeQueryBuilder> queryBuilder,
+      Provider<ChangeQueryProcessor> queryProcessor,
+      AccountCache accountCache,
+      RulesResolver rulesResolver,
+      RulesDryRun dryRun,
+      WorkQueue workQueue,
+      @GerritServerConfig Config cfg,
+      @PluginName String pluginName) {
+    this.permissionBackend = permissionBackend;
+    this.queryBuilder = queryBuilder;
+    this.queryProcessor = queryProcessor;
+    this.accountCache = accountCache;
+    this.rulesResolver = rulesResolver;
+    this.dryRun = dryRun;
+    this.workQueue = workQueue;
+    this.threads = Math.max(1, cfg.getInt("plugin", pluginName, "dryRunThreads", 2));
+    this.maxChanges = Math.max(1, cfg.getInt("plugin", pluginName, "dryRunMaxChanges", 100));
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @Override
+  public Output apply(ProjectResource rsrc, Input input)
+      throws AuthException, BadRequestException, ResourceConflictException,
+          PermissionBackendException, OrmException, IOException, InterruptedException {
+    Project.NameKey project = rsrc.getNameKey();
+    permissionBackend
+        .user(rsrc.getUser())
+        .project(project)
+        .check(ProjectPermission.WRITE_CONFIG);
+
+    if (input == null) {
+      input = new Input();
+    }
+    InheritedRules rules = resolve(project, input);
+    List<ChangeData> changes = query(project, input);
+
+    // ChangeData is not thread-safe: load what the rules read before sharing it.
+    for (ChangeData cd : changes) {
+      cd.change();
+      cd.currentPatchSet();
+      cd.currentApprovals();
+      cd.unresolvedCommentCount();
+      cd.getAuthor();
+      cd.getCommitter();
+    }
+
+    List<Future<ChangeResult>> futures = new ArrayList<>(changes.size());
+    try {
+      for (ChangeData cd : changes) {
+        futures.add(executor().submit(() -> evaluate(project, rules, cd)));
+      }
+
+      Output output = new Output();
+      output.rules = rules.name();
+      output.rulesId = rules.id().name();
+      output.results = new ArrayList<>(changes.size());
+      output.callbackProfile = new TreeMap<>();
+      for (Future<ChangeResult> future : futures) {
+        ChangeResult result;
+        try {
+          result = future.get();
+        } catch (ExecutionException e) {
+          logger.atWarning().withCause(e.getCause()).log("Error in the dry run of %s", project);
+          throw new ResourceConflictException("Error evaluating the rules: " + e.getCause());
+        }
+        output.results.add(result);
+        output.callbacks += result.callbacks;
+        for (Map.Entry<String, CallbackInfo> e : result.callbackProfile.entrySet()) {
+          CallbackInfo total =
+              output.callbackProfile.computeIfAbsent(e.getKey(), k -> new CallbackInfo());
+          total.count += e.getValue().count;
+          total.timeMicros += e.getValue().timeMicros;
+        }
+        if (result.timedOut != null) {
+          output.timeouts++;
+        }
+        if (result.records != null
+            && result.records.stream().anyMatch(r -> "RULE_ERROR".equals(r.status))) {
+          output.ruleErrors++;
+        }
+      }
+      output.changes = output.results.size();
+      output.latency = latency(output.results);
+      return output;
+    } finally {
+      futures.forEach(f -> f.cancel(true));
+    }
+  }
+
+  private InheritedRules resolve(Project.NameKey project, Input input)
+      throws BadRequestException, ResourceConflictException {
+    if (input.rules != null && input.revision != null) {
+      throw new BadRequestException("rules and revision are mutually exclusive");
+    }
+    if (input.revision != null && !ObjectId.isId(input.revision)) {
+      throw new BadRequestException("invalid revision: " + input.revision);
+    }
+
+    InheritedRules rules;
+    try {
+      if (input.rules != null) {
+        rules = rulesResolver.resolve(project, input.rules);
+      } else if (input.revision != null) {
+        rules = rulesResolver.resolve(project, ObjectId.fromString(input.revision));
+      } else {
+        rules = rulesResolver.resolve(project);
+      }
+    } catch (RuleEvalException e) {
+      throw new ResourceConflictException(e.getMessage());
+    }
+    if (rules == null) {
+      throw new ResourceConflictException("No rules.js applies to " + project);
+    }
+    return rules;
+  }
+
+  private List<ChangeData> query(Project.NameKey project, Input input)
+      throws BadRequestException, OrmException {
+    int limit = input.limit != null ? Math.min(Math.max(1, input.limit), maxChanges) : maxChanges;
+    String query = input.query != null ? input.query : "status:open";
+    try {
+      ChangeQueryBuilder builder = queryBuilder.get();
+      Predicate<ChangeData> predicate =
+          Predicate.and(builder.project(project.get()), builder.parse(query));
+      return queryProcessor.get().setUserProvidedLimit(limit).query(predicate).entities();
+    } catch (QueryParseException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+  }
+
+  private ChangeResult evaluate(Project.NameKey project, InheritedRules rules, ChangeData cd)
+      throws OrmException, RuleEvalException {
+    ProfilingChangeContext change = new ProfilingChangeContext(cd, cd.change(), accountCache);
+    long start = System.nanoTime();
+    Collection<SubmitRecord> records = dryRun.dryRun(project, rules, change);
+    long latencyNanos = System.nanoTime() - start;
+
+    ChangeResult result = new ChangeResult();
+    result.change = cd.getId().get();
+    result.latencyMicros = latencyNanos / 1000;
+    result.callbacks = change.totalCalls();
+    result.callbackProfile = new TreeMap<>();
+    for (Map.Entry<String, ProfilingChangeContext.Calls> e : change.calls().entrySet()) {
+      CallbackInfo info = new CallbackInfo();
+      info.count = e.getValue().count();
+      info.timeMicros = NANOSECONDS.toMicros(e.getValue().nanos());
+      result.callbackProfile.put(e.getKey(), info);
+    }
+    if (records != null) {
+      result.records = new ArrayList<>(records.size());
+      for (SubmitRecord record : records) {
+        result.records.add(toInfo(record));
+        if (isTimeout(record)) {
+          result.timedOut = true;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static boolean isTimeout(SubmitRecord record) {
+    return record.status == SubmitRecord.Status.RULE_ERROR
+        && record.requirements != null
+        && record.requirements.stream().anyMatch(r -> RulesDryRun.TIMEOUT.equals(r.type()));
+  }
+
+  private static RecordInfo toInfo(SubmitRecord record) {
+    RecordInfo info = new RecordInfo();
+    info.status = record.status.name();
+    if (record.requirements != null) {
+      info.requirements = new ArrayList<>(record.requirements.size());
+      for (SubmitRequirement requirement : record.requirements) {
+        RequirementInfo requirementInfo = new RequirementInfo();
+        requirementInfo.type = requirement.type();
+        requirementInfo.fallbackText = requirement.fallbackText();
+        info.requirements.add(requirementInfo);
+      }
+    }
+    return info;
+  }
+
+  /** Returns the nearest-rank percentiles of the latencies. */
+  static LatencyInfo latency(List<ChangeResult> results) {
+    LatencyInfo info = new LatencyInfo();
+    if (results.isEmpty()) {
+      return info;
+    }
+    long[] latencies = new long[results.size()];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = results.get(i).latencyMicros;
+    }
+    Longs.sortDescending(latencies);
+    info.max = latencies[0];
+    info.p50 = percentile(latencies, 50);
+    info.p90 = percentile(latencies, 90);
+    info.p99 = percentile(latencies, 99);
+    return info;
+  }
+
+  /** Returns a percentile of latencies sorted in descending order. */
+  private static long percentile(long[] descending, int percent) {
+    int rank = (int) Math.ceil(percent / 100.0 * descending.length);
+    return descending[descending.length - rank];
+  }
+
+  /** The executor is only created by the first dry run. */
+  private ScheduledExecutorService executor() {
+    ScheduledExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = workQueue.createQueue(threads, "ScriptingRulesDryRun");
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.api;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesBreaker;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Lists the rules which are quarantined because they kept failing, so that administrators can
+ * reach out to the owners of the projects.
+ */
+@Singleton
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+class ListQuarantined implements RestReadView<ConfigResource> {
+  static class QuarantineInfo {
+    String project;
+    String rulesId;
+    int failures;
+    String reason;
+    Timestamp since;
+    Timestamp until;
+  }
+
+  private final RulesBreaker breaker;
+
+  @Inject
+  ListQuarantined(RulesBreaker breaker) {
+    this.breaker = breaker;
+  }
+
+  @Override
+  public List<QuarantineInfo> apply(ConfigResource rsrc) {
+    return breaker.quarantined().stream().map(ListQuarantined::toInfo).collect(toImmutableList());
+  }
+
+  private static QuarantineInfo toInfo(RulesBreaker.Quarantine quarantine) {
+    QuarantineInfo info = new QuarantineInfo();
+    info.project = quarantine.project.get();
+    info.rulesId = quarantine.rulesId.name();
+    info.failures = quarantine.failures;
+    info.reason = quarantine.reason;
+    info.since = new Timestamp(quarantine.since);
+    info.until = new Timestamp(quarantine.until);
+    return info;
+  }
+}
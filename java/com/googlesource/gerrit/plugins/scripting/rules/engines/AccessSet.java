@@ -0,0 +1,208 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The fields of a change which a script can read, found by looking for the members of the {@code
+ * change} object in its source.
+ *
+ * <p>The analysis is conservative but not complete: scripts which may enumerate the members of an
+ * object can read all the fields, but a member accessed with a computed name is missed. {@link
+ * ChangeContext} records the fields actually read, so that the engines can detect a miss after
+ * the evaluation.
+ */
+public class AccessSet {
+  /** The data of a change which the rules can read. */
+  public enum Field {
+    SUBJECT,
+    BRANCH,
+    PRIVATE,
+    WORK_IN_PROGRESS,
+    UNRESOLVED_COMMENTS,
+    AUTHOR,
+    COMMITTER,
+    VOTES,
+    EMAILS
+  }
+
+  public static final AccessSet ALL = new AccessSet(EnumSet.allOf(Field.class));
+
+  /** The members of the change object, in rules.js. */
+  private static final ImmutableMap<String, Field> MEMBERS =
+      ImmutableMap.<String, Field>builder()
+          .put("subject", Field.SUBJECT)
+          .put("branch", Field.BRANCH)
+          .put("private", Field.PRIVATE)
+          .put("wip", Field.WORK_IN_PROGRESS)
+          .put("work_in_progress", Field.WORK_IN_PROGRESS)
+          .put("unresolved_comments_count", Field.UNRESOLVED_COMMENTS)
+          .put("author", Field.AUTHOR)
+          .put("committer", Field.COMMITTER)
+          .put("findVotes", Field.VOTES)
+          .put("hasEmail", Field.EMAILS)
+          .build();
+
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+  /** Constructs which can read members without naming them. */
+  private static final Pattern ENUMERATION =
+      Pattern.compile(
+          "\\bfor\\s*\\([^;)]*\\bin\\b"
+              + "|\\bObject\\s*\\.\\s*(keys|values|entries|assign|getOwnProperty\\w*)\\b"
+              + "|\\bJSON\\s*\\.\\s*stringify\\b"
+              + "|\\bReflect\\b"
+              + "|\\beval\\b"
+              + "|\\bFunction\\b"
+              + "|\\.\\.\\.");
+
+  /** Returns the fields which a script can read. */
+  public static AccessSet analyze(String script) {
+    if (ENUMERATION.matcher(script).find()) {
+      return ALL;
+    }
+
+    EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+    // Identifiers also match the members named in string literals, e.g. change['subject'].
+    Matcher m = IDENTIFIER.matcher(script);
+    while (m.find()) {
+      Field field = MEMBERS.get(m.group());
+      if (field != null) {
+        fields.add(field);
+      }
+    }
+    return of(fields);
+  }
+
+  public static AccessSet of(Set<Field> fields) {
+    EnumSet<Field> copy = EnumSet.noneOf(Field.class);
+    copy.addAll(fields);
+    if (copy.contains(Field.EMAILS)) {
+      // Email addresses are checked on the accounts of the votes.
+      copy.add(Field.VOTES);
+    }
+    return new AccessSet(copy);
+  }
+
+  /** Returns the set of fields given by {@link #bits()}. */
+  public static AccessSet fromBits(int bits) {
+    EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+    for (Field field : Field.values()) {
+      if ((bits & (1 << field.ordinal())) != 0) {
+        fields.add(field);
+      }
+    }
+    return of(fields);
+  }
+
+  private final EnumSet<Field> fields;
+
+  private AccessSet(EnumSet<Field> fields) {
+    this.fields = fields;
+  }
+
+  public boolean contains(Field field) {
+    return fields.contains(field);
+  }
+
+  public boolean containsAll(Set<Field> other) {
+    return fields.containsAll(other);
+  }
+
+  /** Returns the fields which are in this set, or in another one. */
+  public AccessSet union(AccessSet other) {
+    EnumSet<Field> union = EnumSet.copyOf(fields);
+    union.addAll(other.fields);
+    return new AccessSet(union);
+  }
+
+  /** Returns the fields as a bit set, in the order of {@link Field}. */
+  public int bits() {
+    int bits = 0;
+    for (Field field : fields) {
+      bits |= 1 << field.ordinal();
+    }
+    return bits;
+  }
+
+  /**
+   * Loads the fields of several changes which the script can read, in bulk when the storage
+   * allows it, so that their evaluations do not load them one by one.
+   */
+  public void prefetch(Collection<ChangeData> changes, AccountCache accountCache)
+      throws OrmException, IOException {
+    if (contains(Field.BRANCH)) {
+      ChangeData.ensureCurrentPatchSetLoaded(changes);
+    }
+    if (contains(Field.VOTES)) {
+      ChangeData.ensureCurrentApprovalsLoaded(changes);
+    }
+    Set<Account.Id> voters = new HashSet<>();
+    for (ChangeData cd : changes) {
+      if (contains(Field.UNRESOLVED_COMMENTS)) {
+        cd.unresolvedCommentCount();
+      }
+      if (contains(Field.AUTHOR)) {
+        cd.getAuthor();
+      }
+      if (contains(Field.COMMITTER)) {
+        cd.getCommitter();
+      }
+      if (contains(Field.EMAILS)) {
+        for (PatchSetApproval approval : cd.currentApprovals()) {
+          voters.add(approval.getAccountId());
+        }
+      }
+    }
+    if (!voters.isEmpty()) {
+      accountCache.get(voters);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof AccessSet && fields.equals(((AccessSet) o).fields);
+  }
+
+  @Override
+  public int hashCode() {
+    return fields.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return fields.toString();
+  }
+
+  /** Returns the fields read by an evaluation which are not in this set. */
+  public Set<Field> missing(Set<Field> accessed) {
+    return Sets.difference(accessed, fields);
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * The data of a change which the rules can access. Engines expose it to the rules with the API of
+ * their language.
+ *
+ * <p>Nothing is loaded before the rules ask for it, and nothing is loaded twice: each accessor
+ * reads the change data on its first call, and returns the same value for the rest of the
+ * evaluation. The votes are indexed by label and value the first time they are searched, and the
+ * accounts of all the voters are loaded together the first time an email address is checked.
+ *
+ * <p>The fields read by the rules are recorded, to check the {@link AccessSet} of the rules.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class ChangeContext {
+  private final ChangeData cd;
+  private final Change change;
+  private final AccountCache accountCache;
+  private final EnumSet<Field> accessed = EnumSet.noneOf(Field.class);
+
+  private String branch;
+  private Integer unresolvedCommentsCount;
+  private boolean unresolvedCommentsCountLoaded;
+  private PersonIdent author;
+  private PersonIdent committer;
+  private Map<String, LabelVotes> votesByLabel;
+  private Map<Account.Id, Set<String>> emailsByVoter;
+
+  public ChangeContext(ChangeData cd, Change change, AccountCache accountCache) {
+    this.cd = cd;
+    this.change = change;
+    this.accountCache = accountCache;
+  }
+
+  public String subject() {
+    accessed.add(Field.SUBJECT);
+    return change.getSubject();
+  }
+
+  /** Returns the ref of the current patch set. */
+  public String branch() throws OrmException {
+    accessed.add(Field.BRANCH);
+    if (branch == null) {
+      branch = cd.currentPatchSet().getRefName();
+    }
+    return branch;
+  }
+
+  public boolean isPrivate() {
+    accessed.add(Field.PRIVATE);
+    return change.isPrivate();
+  }
+
+  public boolean isWorkInProgress() {
+    accessed.add(Field.WORK_IN_PROGRESS);
+    return change.isWorkInProgress();
+  }
+
+  @Nullable
+  public Integer unresolvedCommentsCount() throws OrmException {
+    accessed.add(Field.UNRESOLVED_COMMENTS);
+    if (!unresolvedCommentsCountLoaded) {
+      // Counting the comments reads NoteDb: the count may legitimately be null.
+      unresolvedCommentsCount = cd.unresolvedCommentCount();
+      unresolvedCommentsCountLoaded = true;
+    }
+    return unresolvedCommentsCount;
+  }
+
+  public PersonIdent author() throws IOException, OrmException {
+    accessed.add(Field.AUTHOR);
+    if (author == null) {
+      author = cd.getAuthor();
+    }
+    return author;
+  }
+
+  public PersonIdent committer() throws IOException, OrmException {
+    accessed.add(Field.COMMITTER);
+    if (committer == null) {
+      committer = cd.getCommitter();
+    }
+    return committer;
+  }
+
+  /**
+   * Returns the votes of the current patch set on a label, compared without case.
+   *
+   * @param value if not null, only the votes with this value are returned.
+   */
+  public List<PatchSetApproval> findVotes(String label, @Nullable Integer value)
+      throws OrmException {
+    accessed.add(Field.VOTES);
+    LabelVotes votes = votesByLabel().get(normalize(label));
+    if (votes == null) {
+      return ImmutableList.of();
+    }
+    if (value == null) {
+      return Collections.unmodifiableList(votes.all);
+    }
+    if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+      return ImmutableList.of();
+    }
+    return Collections.unmodifiableList(votes.byValue.get(value.shortValue()));
+  }
+
+  /**
+   * Returns whether an account has the given email address, compared without case. The account is
+   * expected to be one of the voters.
+   */
+  public boolean hasEmail(Account.Id accountId, String email) throws OrmException {
+    accessed.add(Field.EMAILS);
+    Set<String> emails = emailsByVoter().get(accountId);
+    if (emails == null) {
+      emails = emailsOf(accountCache.getEvenIfMissing(accountId));
+    }
+    return emails.contains(normalize(email));
+  }
+
+  /** Returns the fields read so far. */
+  public Set<Field> accessed() {
+    return Collections.unmodifiableSet(accessed);
+  }
+
+  private Map<String, LabelVotes> votesByLabel() throws OrmException {
+    if (votesByLabel == null) {
+      Map<String, LabelVotes> byLabel = new HashMap<>();
+      for (PatchSetApproval approval : cd.currentApprovals()) {
+        byLabel
+            .computeIfAbsent(normalize(approval.getLabel()), l -> new LabelVotes())
+            .add(approval);
+      }
+      votesByLabel = byLabel;
+    }
+    return votesByLabel;
+  }
+
+  private Map<Account.Id, Set<String>> emailsByVoter() throws OrmException {
+    if (emailsByVoter == null) {
+      Set<Account.Id> voters = new HashSet<>();
+      for (PatchSetApproval approval : cd.currentApprovals()) {
+        voters.add(approval.getAccountId());
+      }
+
+      Map<Account.Id, Set<String>> byVoter = new HashMap<>();
+      for (AccountState account : accountCache.get(voters).values()) {
+        byVoter.put(account.getAccount().getId(), emailsOf(account));
+      }
+      emailsByVoter = byVoter;
+    }
+    return emailsByVoter;
+  }
+
+  private static Set<String> emailsOf(AccountState account) {
+    ImmutableSet.Builder<String> emails = ImmutableSet.builder();
+    for (ExternalId extId : account.getExternalIds()) {
+      if (extId.email() != null) {
+        emails.add(normalize(extId.email()));
+      }
+    }
+    return emails.build();
+  }
+
+  private static String normalize(String s) {
+    return s.toLowerCase(Locale.US);
+  }
+
+  /** The votes on a label, in the order of the change's approvals. */
+  private static class LabelVotes {
+    final List<PatchSetApproval> all = new ArrayList<>();
+    final ListMultimap<Short, PatchSetApproval> byValue =
+        MultimapBuilder.hashKeys().arrayListValues().build();
+
+    void add(PatchSetApproval approval) {
+      all.add(approval);
+      byValue.put(approval.getValue(), approval);
+    }
+  }
+}
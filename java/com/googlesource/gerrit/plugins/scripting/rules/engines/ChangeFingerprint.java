@@ -0,0 +1,124 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * Computes a hash of everything a rule can observe about a change: two evaluations of the same
+ * rules with the same fingerprint give the same result.
+ *
+ * <p>Given the {@link AccessSet} of the rules, only the fields they can read are hashed, and
+ * loaded: rules which only check the votes keep their cached results when the subject changes.
+ */
+public class ChangeFingerprint {
+  private ChangeFingerprint() {}
+
+  public static HashCode of(ChangeData cd, Change change, AccountCache accountCache)
+      throws IOException, OrmException {
+    return of(cd, change, accountCache, AccessSet.ALL);
+  }
+
+  public static HashCode of(
+      ChangeData cd, Change change, AccountCache accountCache, AccessSet accessSet)
+      throws IOException, OrmException {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    h.putInt(change.getId().get());
+    // Fingerprints of different sets of fields must not collide.
+    h.putInt(accessSet.bits());
+
+    if (accessSet.contains(Field.SUBJECT)) {
+      putString(h, change.getSubject());
+    }
+    if (accessSet.contains(Field.BRANCH)) {
+      putString(h, cd.currentPatchSet().getRefName());
+    }
+    if (accessSet.contains(Field.PRIVATE)) {
+      h.putBoolean(change.isPrivate());
+    }
+    if (accessSet.contains(Field.WORK_IN_PROGRESS)) {
+      h.putBoolean(change.isWorkInProgress());
+    }
+    if (accessSet.contains(Field.UNRESOLVED_COMMENTS)) {
+      Integer unresolved = cd.unresolvedCommentCount();
+      h.putInt(unresolved != null ? unresolved : -1);
+    }
+    if (accessSet.contains(Field.AUTHOR)) {
+      putPerson(h, cd.getAuthor());
+    }
+    if (accessSet.contains(Field.COMMITTER)) {
+      putPerson(h, cd.getCommitter());
+    }
+    if (!accessSet.contains(Field.VOTES)) {
+      return h.hash();
+    }
+
+    for (PatchSetApproval approval : cd.currentApprovals()) {
+      putString(h, approval.getLabel());
+      h.putShort(approval.getValue());
+      h.putInt(approval.getPatchSetId().get());
+      h.putInt(approval.getAccountId().get());
+
+      if (accessSet.contains(Field.EMAILS)) {
+        // Rules can check the email addresses of the voters.
+        AccountState account = accountCache.getEvenIfMissing(approval.getAccountId());
+        Set<String> emails = new TreeSet<>();
+        for (ExternalId extId : account.getExternalIds()) {
+          if (extId.email() != null) {
+            emails.add(extId.email());
+          }
+        }
+        h.putInt(emails.size());
+        emails.forEach(e -> putString(h, e));
+      }
+    }
+    return h.hash();
+  }
+
+  private static void putPerson(Hasher h, @Nullable PersonIdent person) {
+    if (person == null) {
+      h.putBoolean(false);
+      return;
+    }
+    h.putBoolean(true);
+    putString(h, person.getName());
+    putString(h, person.getEmailAddress());
+  }
+
+  private static void putString(Hasher h, @Nullable String value) {
+    // Prefix with the length, so that consecutive strings cannot be confused.
+    String s = Strings.nullToEmpty(value);
+    h.putInt(s.length());
+    h.putString(s, UTF_8);
+  }
+}
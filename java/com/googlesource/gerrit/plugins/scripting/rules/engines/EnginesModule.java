@@ -15,18 +15,41 @@
 package com.googlesource.gerrit.plugins.scripting.rules.engines;
 
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.rules.SubmitRule;
-import com.google.inject.AbstractModule;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.declarative.DeclarativeEngineModule;
 import com.googlesource.gerrit.plugins.scripting.rules.engines.js.JsEngineModule;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.rhino.RhinoEngineModule;
 import com.googlesource.gerrit.plugins.scripting.rules.rule.ScriptedRule;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileCache;
+import org.eclipse.jgit.lib.Config;
 
 /** Rules for the batch programs (compatible with the offline reindexer) */
-public class EnginesModule extends AbstractModule {
+public class EnginesModule extends LifecycleModule {
+  private final Config cfg;
+  private final String pluginName;
+
+  public EnginesModule(Config cfg, String pluginName) {
+    this.cfg = cfg;
+    this.pluginName = pluginName;
+  }
+
   @Override
   protected void configure() {
     DynamicSet.bind(binder(), SubmitRule.class).to(ScriptedRule.class);
+    listener().to(ScriptedRule.class);
     DynamicSet.setOf(binder(), RuleEngine.class);
+    install(FileCache.module());
+    install(SubmitRecordCache.module());
+
+    install(new DeclarativeEngineModule());
 
-    install(new JsEngineModule());
+    // rules.js is evaluated by a single engine, chosen per server.
+    String jsEngine = cfg.getString("plugin", pluginName, "jsEngine");
+    if ("rhino".equalsIgnoreCase(jsEngine)) {
+      install(new RhinoEngineModule());
+    } else {
+      install(new JsEngineModule());
+    }
   }
 }
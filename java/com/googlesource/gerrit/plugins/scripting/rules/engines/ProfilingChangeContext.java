@@ -0,0 +1,166 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * A change which measures the calls of the rules, by callback. The callbacks are named after the
+ * members of the {@code change} object of rules.js, e.g. {@code findVotes}.
+ *
+ * <p>Profiling is opt-in: it costs two clock reads per call.
+ */
+public class ProfilingChangeContext extends ChangeContext {
+  /** The calls to one callback. */
+  public static class Calls {
+    private int count;
+    private long nanos;
+
+    public int count() {
+      return count;
+    }
+
+    /** Returns the time spent in the callback, in nanoseconds. */
+    public long nanos() {
+      return nanos;
+    }
+  }
+
+  private final Map<String, Calls> calls = new TreeMap<>();
+
+  public ProfilingChangeContext(ChangeData cd, Change change, AccountCache accountCache) {
+    super(cd, change, accountCache);
+  }
+
+  /** Returns the calls made so far, by callback name. */
+  public Map<String, Calls> calls() {
+    return Collections.unmodifiableMap(calls);
+  }
+
+  /** Returns the number of calls made so far, to all the callbacks. */
+  public int totalCalls() {
+    return calls.values().stream().mapToInt(Calls::count).sum();
+  }
+
+  @Override
+  public String subject() {
+    long start = System.nanoTime();
+    try {
+      return super.subject();
+    } finally {
+      record("subject", start);
+    }
+  }
+
+  @Override
+  public String branch() throws OrmException {
+    long start = System.nanoTime();
+    try {
+      return super.branch();
+    } finally {
+      record("branch", start);
+    }
+  }
+
+  @Override
+  public boolean isPrivate() {
+    long start = System.nanoTime();
+    try {
+      return super.isPrivate();
+    } finally {
+      record("private", start);
+    }
+  }
+
+  @Override
+  public boolean isWorkInProgress() {
+    long start = System.nanoTime();
+    try {
+      return super.isWorkInProgress();
+    } finally {
+      record("wip", start);
+    }
+  }
+
+  @Override
+  @Nullable
+  public Integer unresolvedCommentsCount() throws OrmException {
+    long start = System.nanoTime();
+    try {
+      return super.unresolvedCommentsCount();
+    } finally {
+      record("unresolved_comments_count", start);
+    }
+  }
+
+  @Override
+  public PersonIdent author() throws IOException, OrmException {
+    long start = System.nanoTime();
+    try {
+      return super.author();
+    } finally {
+      record("author", start);
+    }
+  }
+
+  @Override
+  public PersonIdent committer() throws IOException, OrmException {
+    long start = System.nanoTime();
+    try {
+      return super.committer();
+    } finally {
+      record("committer", start);
+    }
+  }
+
+  @Override
+  public List<PatchSetApproval> findVotes(String label, @Nullable Integer value)
+      throws OrmException {
+    long start = System.nanoTime();
+    try {
+      return super.findVotes(label, value);
+    } finally {
+      record("findVotes", start);
+    }
+  }
+
+  @Override
+  public boolean hasEmail(Account.Id accountId, String email) throws OrmException {
+    long start = System.nanoTime();
+    try {
+      return super.hasEmail(accountId, email);
+    } finally {
+      record("hasEmail", start);
+    }
+  }
+
+  private void record(String callback, long start) {
+    Calls c = calls.computeIfAbsent(callback, k -> new Calls());
+    c.count++;
+    c.nanos += System.nanoTime() - start;
+  }
+}
@@ -17,18 +17,71 @@ package com.googlesource.gerrit.plugins.scripting.rules.engines;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.SubmitRecord;
 import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.project.SubmitRuleEvaluator;
 import com.google.gerrit.server.project.SubmitRuleOptions;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gwtorm.server.OrmException;
 import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** Defines a scripting engine, called when a change must be evaluated. */
 public interface RuleEngine {
+  /** Name of the engine, used to break the metrics down. */
+  default String name() {
+    return getClass().getSimpleName();
+  }
+
   @Nullable
   Collection<SubmitRecord> evaluate(
       ChangeData cd, Change change, SubmitRuleOptions opts, FileFinder fileFinder)
       throws IOException, OrmException, RuleEvalException;
+
+  /**
+   * Returns the fields of the changes of a project which the rules of this engine read, or null if
+   * the engine has no rules for the project.
+   *
+   * <p>Only the engines with rules evaluate a change concurrently, and the fields they read are
+   * loaded beforehand, as ChangeData is not thread-safe. The default implementation assumes that
+   * the engine has rules, which read all the fields.
+   */
+  @Nullable
+  default AccessSet accessSet(Project.NameKey project, FileFinder fileFinder)
+      throws IOException, OrmException, RuleEvalException {
+    return AccessSet.ALL;
+  }
+
+  /**
+   * Evaluates several changes of the same project, for instance when they are reindexed.
+   *
+   * <p>Engines should override this method when they can share work between the changes. Errors
+   * evaluating one change must not prevent the evaluation of the others.
+   *
+   * @return the records of each change, in the order of {@code changes}. Changes for which the
+   *     engine has no opinion are omitted.
+   */
+  default Map<Change.Id, Collection<SubmitRecord>> evaluate(
+      Project.NameKey project,
+      Collection<ChangeData> changes,
+      SubmitRuleOptions opts,
+      FileFinder fileFinder)
+      throws IOException, OrmException, RuleEvalException {
+    Map<Change.Id, Collection<SubmitRecord>> results = new LinkedHashMap<>();
+    for (ChangeData cd : changes) {
+      Collection<SubmitRecord> records;
+      try {
+        records = evaluate(cd, cd.change(), opts, fileFinder);
+      } catch (IOException | OrmException | RuleEvalException e) {
+        records = SubmitRuleEvaluator.createRuleError("Error evaluating the rules");
+      }
+      if (records != null) {
+        results.put(cd.getId(), records);
+      }
+    }
+    return results;
+  }
 }
@@ -0,0 +1,255 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRecord.Status;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Quarantines the rules which keep failing, so that their evaluations fail fast instead of burning
+ * the whole timeout on request threads.
+ *
+ * <p>Failures are counted per project and version of the rules. After {@code threshold} failures
+ * in a row, the rules are quarantined for a backoff period. Once it is over, a single evaluation
+ * is let through to probe the rules: if it succeeds, the quarantine is lifted, else the rules are
+ * quarantined again for twice as long, up to a maximum.
+ *
+ * <p>A new version of the rules starts with a clean slate.
+ */
+@Singleton
+public class RulesBreaker {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final int threshold;
+  private final long backoffMs;
+  private final long maxBackoffMs;
+  private final LongSupplier clock;
+  private final Map<Key, State> states = new ConcurrentHashMap<>();
+
+  @Inject
+  RulesBreaker(@GerritServerConfig Config cfg, @PluginName String pluginName) {
+    this(
+        cfg.getInt("plugin", pluginName, "quarantineThreshold", 5),
+        ConfigUtil.getTimeUnit(
+            cfg, "plugin", pluginName, "quarantineBackoff", SECONDS.toMillis(30), MILLISECONDS),
+        ConfigUtil.getTimeUnit(
+            cfg, "plugin", pluginName, "quarantineMaxBackoff", MINUTES.toMillis(10), MILLISECONDS),
+        System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  RulesBreaker(int threshold, long backoffMs, long maxBackoffMs, LongSupplier clock) {
+    this.threshold = threshold;
+    this.backoffMs = Math.max(1, backoffMs);
+    this.maxBackoffMs = Math.max(this.backoffMs, maxBackoffMs);
+    this.clock = clock;
+  }
+
+  /**
+   * Returns whether the rules can be evaluated: they are not quarantined, or this evaluation is
+   * the probe of the end of their quarantine. The outcome of an allowed evaluation must be
+   * reported with {@link #succeeded} or {@link #failed}.
+   */
+  public boolean allow(Project.NameKey project, ObjectId rulesId) {
+    State state = states.get(new Key(project, rulesId));
+    return state == null || state.allow(clock.getAsLong());
+  }
+
+  public void succeeded(Project.NameKey project, ObjectId rulesId) {
+    if (states.isEmpty()) {
+      return;
+    }
+    State state = states.remove(new Key(project, rulesId));
+    if (state != null && state.quarantinedAt != 0) {
+      logger.atInfo().log("Rules %s of %s are no longer quarantined", rulesId.name(), project);
+    }
+  }
+
+  /**
+   * Counts a failure of the rules.
+   *
+   * @param reason the type of the error, e.g. {@link RulesEvaluator#TIMEOUT}.
+   */
+  public void failed(Project.NameKey project, ObjectId rulesId, String reason) {
+    if (threshold <= 0) {
+      return;
+    }
+    Key key = new Key(project, rulesId);
+    // The previous versions of the rules are not evaluated anymore.
+    states.keySet().removeIf(k -> k.project.equals(project) && !k.rulesId.equals(rulesId));
+    State state = states.computeIfAbsent(key, k -> new State());
+    if (state.failed(clock.getAsLong(), reason)) {
+      logger.atWarning().log(
+          "Rules %s of %s are quarantined after %d failures (%s)",
+          rulesId.name(), project, state.failures, reason);
+    }
+  }
+
+  /**
+   * Returns the type of the error returned by the engine instead of the records of the rules, or
+   * null if the rules completed. Any {@code RULE_ERROR} record is an error, {@link
+   * RulesEvaluator#UNKNOWN_ERROR} if it has no typed requirement.
+   */
+  @Nullable
+  public static String errorType(@Nullable Collection<SubmitRecord> records) {
+    if (records == null || records.stream().noneMatch(r -> r.status == Status.RULE_ERROR)) {
+      return null;
+    }
+    return records
+        .stream()
+        .filter(r -> r.status == Status.RULE_ERROR && r.requirements != null)
+        .flatMap(r -> r.requirements.stream())
+        .map(SubmitRequirement::type)
+        .filter(Objects::nonNull)
+        .findFirst()
+        .orElse(RulesEvaluator.UNKNOWN_ERROR);
+  }
+
+  /** Returns the rules currently quarantined, or probed, the most recent first. */
+  public ImmutableList<Quarantine> quarantined() {
+    return states
+        .entrySet()
+        .stream()
+        .map(e -> e.getValue().snapshot(e.getKey()))
+        .filter(Objects::nonNull)
+        .sorted(Comparator.comparingLong((Quarantine q) -> q.since).reversed())
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** The rules of a project in quarantine. */
+  public static class Quarantine {
+    public final Project.NameKey project;
+    public final ObjectId rulesId;
+    /** Failures in a row, including the failed probes. */
+    public final int failures;
+    /** Type of the last error. */
+    public final String reason;
+    /** When the rules were quarantined, in milliseconds since the epoch. */
+    public final long since;
+    /** When the next probe is let through, in milliseconds since the epoch. */
+    public final long until;
+
+    Quarantine(
+        Project.NameKey project,
+        ObjectId rulesId,
+        int failures,
+        String reason,
+        long since,
+        long until) {
+      this.project = project;
+      this.rulesId = rulesId;
+      this.failures = failures;
+      this.reason = reason;
+      this.since = since;
+      this.until = until;
+    }
+  }
+
+  private class State {
+    // Guarded by this.
+    int failures;
+    String reason;
+    long quarantinedAt;
+    long openUntil;
+    long backoff;
+    boolean probing;
+
+    synchronized boolean allow(long now) {
+      if (quarantinedAt == 0) {
+        return true;
+      }
+      if (now < openUntil) {
+        return false;
+      }
+      // If the outcome of the probe is never reported, another one is let through later.
+      probing = true;
+      openUntil = now + backoff;
+      return true;
+    }
+
+    /** Returns whether the rules were just quarantined. */
+    synchronized boolean failed(long now, String reason) {
+      failures++;
+      this.reason = reason;
+      if (probing) {
+        // The probe failed: back off further.
+        probing = false;
+        backoff = Math.min(2 * backoff, maxBackoffMs);
+        openUntil = now + backoff;
+        return false;
+      }
+      if (quarantinedAt != 0 || failures < threshold) {
+        return false;
+      }
+      quarantinedAt = now;
+      backoff = backoffMs;
+      openUntil = now + backoff;
+      return true;
+    }
+
+    synchronized Quarantine snapshot(Key key) {
+      if (quarantinedAt == 0) {
+        return null;
+      }
+      return new Quarantine(key.project, key.rulesId, failures, reason, quarantinedAt, openUntil);
+    }
+  }
+
+  private static class Key {
+    final Project.NameKey project;
+    final ObjectId rulesId;
+
+    Key(Project.NameKey project, ObjectId rulesId) {
+      this.project = project;
+      this.rulesId = rulesId.copy();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return project.equals(other.project) && rulesId.equals(other.rulesId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, rulesId);
+    }
+  }
+}
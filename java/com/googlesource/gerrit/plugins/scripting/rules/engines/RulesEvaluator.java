@@ -0,0 +1,206 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRecord.Status;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Evaluates rules.js, whichever engine runs it: the results are cached by the {@link
+ * ChangeFingerprint} of the fields the rules read, the rules which keep failing are quarantined by
+ * the {@link RulesBreaker}, and the failures of the rules are returned as records with a {@code
+ * RULE_ERROR} status.
+ */
+@Singleton
+public class RulesEvaluator {
+  // The types of the errors do not depend on the engine: the engines are interchangeable.
+  public static final String INVALID_RULES = "rules_js_invalid";
+  public static final String TIMEOUT = "rules_js_timeout";
+  public static final String RESOURCES_EXHAUSTED = "rules_js_resources_exhausted";
+  public static final String QUARANTINED = "rules_js_quarantined";
+  // The errors which do not come with a type, e.g. the records of SubmitRuleEvaluator.
+  public static final String UNKNOWN_ERROR = "rules_js_error";
+
+  /** Rules whose results can be cached. */
+  public interface Rules {
+    /** Returns the id of the rules, which their results are cached by. */
+    ObjectId id();
+
+    /** Returns the fields of the changes which the rules may read. */
+    AccessSet accessSet();
+
+    /**
+     * Checks that an evaluation only read fields of the access set it was fingerprinted with.
+     *
+     * @return whether the result of the evaluation can be cached.
+     */
+    boolean checkAccessSet(AccessSet expected, Set<AccessSet.Field> accessed);
+  }
+
+  /** Runs the rules on a change, in the engine. */
+  @FunctionalInterface
+  public interface Evaluation {
+    /**
+     * Returns the records of the change, the error of the rules if they failed, or null if they did
+     * not add any requirement.
+     */
+    @Nullable
+    Collection<SubmitRecord> evaluate(ChangeContext change) throws RuleEvalException;
+  }
+
+  private final AccountCache accountCache;
+  private final RulesBreaker breaker;
+  private final RulesMetrics metrics;
+  private final SubmitRecordCache resultCache;
+
+  @Inject
+  RulesEvaluator(
+      AccountCache accountCache,
+      RulesBreaker breaker,
+      RulesMetrics metrics,
+      SubmitRecordCache resultCache) {
+    this.accountCache = accountCache;
+    this.breaker = breaker;
+    this.metrics = metrics;
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Evaluates the rules on a change, unless the result of the same inputs is cached, or the rules
+   * are quarantined.
+   *
+   * @param engine the name of the engine, in the metrics.
+   * @param profileCallbacks whether to time the callbacks of the change API. Only called when the
+   *     result is not cached.
+   * @param evaluation runs the rules, when the result is not cached.
+   */
+  @Nullable
+  public Collection<SubmitRecord> evaluate(
+      String engine,
+      Project.NameKey project,
+      Rules rules,
+      ChangeData cd,
+      Change change,
+      BooleanSupplier profileCallbacks,
+      Evaluation evaluation)
+      throws IOException, OrmException, RuleEvalException {
+    ObjectId rulesId = rules.id();
+
+    // The same change is often evaluated several times in a row with the same inputs.
+    AccessSet accessSet = rules.accessSet();
+    HashCode fingerprint = ChangeFingerprint.of(cd, change, accountCache, accessSet);
+    Optional<List<SubmitRecord>> cached = resultCache.get(rulesId, fingerprint);
+    metrics.resultCacheLookup(engine, cached.isPresent());
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    if (!breaker.allow(project, rulesId)) {
+      metrics.quarantined(engine, project);
+      return ruleError(QUARANTINED, "rules.js keeps failing, its evaluations are suspended");
+    }
+    boolean profile = profileCallbacks.getAsBoolean();
+    ChangeContext context =
+        profile
+            ? new ProfilingChangeContext(cd, change, accountCache)
+            : new ChangeContext(cd, change, accountCache);
+    Collection<SubmitRecord> results;
+    try {
+      results = evaluation.evaluate(context);
+    } catch (RuleEvalException e) {
+      breaker.failed(project, rulesId, UNKNOWN_ERROR);
+      throw e;
+    }
+    if (profile) {
+      metrics.callbacks(project, (ProfilingChangeContext) context);
+    }
+    reportOutcome(project, rulesId, results);
+    if (!rules.checkAccessSet(accessSet, context.accessed())) {
+      // The fingerprint missed a field the result depends on.
+      return results;
+    }
+    if (!hasLimitError(results)) {
+      // Whether a limit is exceeded depends on the load of the server: retry next time.
+      resultCache.put(rulesId, fingerprint, results);
+    }
+    return results;
+  }
+
+  /** Returns the error of rules which did not complete within their timeout. */
+  public Collection<SubmitRecord> timedOut(String engine, Project.NameKey project, long timeoutMs) {
+    metrics.timedOut(engine, project);
+    return ruleError(TIMEOUT, "rules.js did not complete within " + timeoutMs + " ms");
+  }
+
+  /** Returns the error of rules which exceeded the memory or the stack of the engine. */
+  public static Collection<SubmitRecord> resourcesExhausted() {
+    return ruleError(RESOURCES_EXHAUSTED, "rules.js ran out of memory or stack space");
+  }
+
+  /** Returns the error of rules which are invalid, or threw an exception. */
+  public static Collection<SubmitRecord> invalidRules() {
+    return ruleError(INVALID_RULES, "Fix the rules.js file!");
+  }
+
+  private static Collection<SubmitRecord> ruleError(String type, String fallbackText) {
+    SubmitRecord errorRecord = new SubmitRecord();
+    errorRecord.status = Status.RULE_ERROR;
+    errorRecord.requirements =
+        ImmutableList.of(
+            SubmitRequirement.builder().setFallbackText(fallbackText).setType(type).build());
+    return ImmutableList.of(errorRecord);
+  }
+
+  private static boolean hasLimitError(@Nullable Collection<SubmitRecord> records) {
+    if (records == null) {
+      return false;
+    }
+    return records
+        .stream()
+        .filter(r -> r.status == Status.RULE_ERROR && r.requirements != null)
+        .flatMap(r -> r.requirements.stream())
+        .anyMatch(r -> TIMEOUT.equals(r.type()) || RESOURCES_EXHAUSTED.equals(r.type()));
+  }
+
+  /** Counts the failures of the rules, to quarantine the rules which keep failing. */
+  private void reportOutcome(
+      Project.NameKey project, ObjectId rulesId, @Nullable Collection<SubmitRecord> results) {
+    String error = RulesBreaker.errorType(results);
+    if (error != null) {
+      breaker.failed(project, rulesId, error);
+    } else {
+      breaker.succeeded(project, rulesId);
+    }
+  }
+}
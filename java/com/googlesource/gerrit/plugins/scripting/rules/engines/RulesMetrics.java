@@ -0,0 +1,147 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.metrics.Counter2;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+
+/** Metrics shared by the engines, broken down by engine and project. */
+@Singleton
+public class RulesMetrics {
+  private final Timer2<String, String> evaluationLatency;
+  private final Timer2<String, String> readLatency;
+  private final Counter2<String, String> timeouts;
+  private final Counter2<String, String> ruleErrors;
+  private final Counter2<String, String> quarantined;
+  private final Counter2<String, Boolean> resultCacheLookups;
+  private final Counter2<String, String> callbackCalls;
+  private final Counter2<String, String> callbackTime;
+
+  @Inject
+  RulesMetrics(MetricMaker metricMaker) {
+    Field<String> engine = Field.ofString("engine", "rule engine");
+    Field<String> project = Field.ofString("project", "project of the evaluated change");
+
+    evaluationLatency =
+        metricMaker.newTimer(
+            "evaluation_latency",
+            new Description("Time spent evaluating the rules of a change")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            engine,
+            project);
+    readLatency =
+        metricMaker.newTimer(
+            "read_latency",
+            new Description("Time spent reading the rules from refs/meta/config")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            engine,
+            project);
+    timeouts =
+        metricMaker.newCounter(
+            "timeout_count",
+            new Description("Evaluations terminated because they exceeded the timeout")
+                .setRate()
+                .setUnit("evaluations"),
+            engine,
+            project);
+    ruleErrors =
+        metricMaker.newCounter(
+            "rule_error_count",
+            new Description("Evaluations which returned a RULE_ERROR record")
+                .setRate()
+                .setUnit("evaluations"),
+            engine,
+            project);
+    quarantined =
+        metricMaker.newCounter(
+            "quarantined_count",
+            new Description("Evaluations which failed fast because the rules are quarantined")
+                .setRate()
+                .setUnit("evaluations"),
+            engine,
+            project);
+    resultCacheLookups =
+        metricMaker.newCounter(
+            "result_cache_lookup_count",
+            new Description("Lookups in the cache of evaluation results")
+                .setRate()
+                .setUnit("lookups"),
+            engine,
+            Field.ofBoolean("hit", "whether the result was cached"));
+
+    Field<String> callback = Field.ofString("callback", "member of the change object");
+    callbackCalls =
+        metricMaker.newCounter(
+            "callback_count",
+            new Description("Calls of the rules to the change object, when profiled")
+                .setRate()
+                .setUnit("calls"),
+            callback,
+            project);
+    callbackTime =
+        metricMaker.newCounter(
+            "callback_time",
+            new Description("Time spent in the calls of the rules to the change object")
+                .setCumulative()
+                .setUnit(Units.MICROSECONDS),
+            callback,
+            project);
+  }
+
+  public Timer2.Context startEvaluation(String engine, Project.NameKey project) {
+    return evaluationLatency.start(engine, project.get());
+  }
+
+  public Timer2.Context startRead(String engine, Project.NameKey project) {
+    return readLatency.start(engine, project.get());
+  }
+
+  public void timedOut(String engine, Project.NameKey project) {
+    timeouts.increment(engine, project.get());
+  }
+
+  public void ruleError(String engine, Project.NameKey project) {
+    ruleErrors.increment(engine, project.get());
+  }
+
+  public void quarantined(String engine, Project.NameKey project) {
+    quarantined.increment(engine, project.get());
+  }
+
+  public void resultCacheLookup(String engine, boolean hit) {
+    resultCacheLookups.increment(engine, hit);
+  }
+
+  /** Reports the calls made by an evaluation of the rules of a project. */
+  public void callbacks(Project.NameKey project, ProfilingChangeContext change) {
+    for (Map.Entry<String, ProfilingChangeContext.Calls> e : change.calls().entrySet()) {
+      callbackCalls.incrementBy(e.getKey(), project.get(), e.getValue().count());
+      callbackTime.incrementBy(
+          e.getKey(), project.get(), NANOSECONDS.toMicros(e.getValue().nanos()));
+    }
+  }
+}
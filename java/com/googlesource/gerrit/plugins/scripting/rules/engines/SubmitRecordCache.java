@@ -0,0 +1,129 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Results of previous evaluations, keyed by the version of the rules and the {@link
+ * ChangeFingerprint} of the evaluated change.
+ *
+ * <p>Entries never need to be invalidated: when the rules or the change are updated, the key
+ * changes, and the stale entries are eventually evicted.
+ */
+@Singleton
+public class SubmitRecordCache {
+  static final String CACHE_NAME = "submit_records";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, new TypeLiteral<ImmutableList<SubmitRecord>>() {})
+            .maximumWeight(20000);
+        bind(SubmitRecordCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, ImmutableList<SubmitRecord>> cache;
+
+  @Inject
+  SubmitRecordCache(@Named(CACHE_NAME) Cache<Key, ImmutableList<SubmitRecord>> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the result of a previous evaluation. The result is empty when the rules did not return
+   * any record.
+   */
+  public Optional<List<SubmitRecord>> get(ObjectId rulesId, HashCode fingerprint) {
+    ImmutableList<SubmitRecord> records = cache.getIfPresent(new Key(rulesId, fingerprint));
+    return Optional.ofNullable(records).map(SubmitRecordCache::copy);
+  }
+
+  public void put(
+      ObjectId rulesId, HashCode fingerprint, @Nullable Collection<SubmitRecord> records) {
+    cache.put(
+        new Key(rulesId, fingerprint),
+        records != null ? ImmutableList.copyOf(copy(records)) : ImmutableList.of());
+  }
+
+  /** Submit records are mutable: never share them with the callers. */
+  private static List<SubmitRecord> copy(Collection<SubmitRecord> records) {
+    List<SubmitRecord> copies = new ArrayList<>(records.size());
+    for (SubmitRecord record : records) {
+      SubmitRecord copy = new SubmitRecord();
+      copy.status = record.status;
+      copy.errorMessage = record.errorMessage;
+      if (record.requirements != null) {
+        // Requirements are immutable.
+        copy.requirements = new ArrayList<>(record.requirements);
+      }
+      if (record.labels != null) {
+        copy.labels = new ArrayList<>(record.labels.size());
+        for (SubmitRecord.Label label : record.labels) {
+          SubmitRecord.Label labelCopy = new SubmitRecord.Label();
+          labelCopy.label = label.label;
+          labelCopy.status = label.status;
+          labelCopy.appliedBy = label.appliedBy;
+          copy.labels.add(labelCopy);
+        }
+      }
+      copies.add(copy);
+    }
+    return copies;
+  }
+
+  static class Key {
+    final ObjectId rulesId;
+    final HashCode fingerprint;
+
+    Key(ObjectId rulesId, HashCode fingerprint) {
+      this.rulesId = rulesId.copy();
+      this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return rulesId.equals(other.rulesId) && fingerprint.equals(other.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(rulesId, fingerprint);
+    }
+  }
+}
@@ -0,0 +1,302 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.declarative;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRecord.Status;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * The requirements of a rules.config file, compiled to predicates on the change.
+ *
+ * <p>Each requirement is a section of the file, whose keys are conditions which must all hold:
+ *
+ * <pre>
+ * [requirement "code-review"]
+ *   description = Code-Review +2 from someone else than the owner
+ *   label = Code-Review
+ *   minValue = 2
+ *   ignoreSelfApproval = true
+ *   vetoValue = -2
+ * [requirement "ready"]
+ *   description = No unresolved comments, not a work in progress
+ *   maxUnresolvedComments = 0
+ *   allowWorkInProgress = false
+ * </pre>
+ *
+ * <p>Compiled rules are immutable, and evaluating them does not allocate anything but the returned
+ * records.
+ */
+class CompiledRules {
+  static final String REQUIREMENT_TYPE = "rules_config";
+  static final String INVALID_RULES = "rules_config_invalid";
+
+  private static final String SECTION = "requirement";
+  private static final Set<String> KEYS =
+      ImmutableSet.of(
+          "description",
+          "label",
+          "minValue",
+          "ignoreSelfApproval",
+          "vetoValue",
+          "maxUnresolvedComments",
+          "allowWorkInProgress",
+          "allowPrivate");
+
+  /** A condition on the change, which must not allocate. */
+  @FunctionalInterface
+  interface Condition {
+    boolean test(ChangeData cd, Change change) throws OrmException;
+  }
+
+  /** Compiles the content of a rules.config file. */
+  static CompiledRules compile(String text) throws ConfigInvalidException {
+    Config cfg = new Config();
+    cfg.fromText(text);
+
+    for (String section : cfg.getSections()) {
+      if (!section.equals(SECTION)) {
+        throw new ConfigInvalidException("Unknown section: " + section);
+      }
+    }
+
+    ImmutableList.Builder<Requirement> requirements = ImmutableList.builder();
+    EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+    try {
+      for (String name : cfg.getSubsections(SECTION)) {
+        requirements.add(compileRequirement(cfg, name, fields));
+      }
+    } catch (IllegalArgumentException e) {
+      // Invalid numbers or booleans.
+      throw new ConfigInvalidException(e.getMessage(), e);
+    }
+    return new CompiledRules(requirements.build(), AccessSet.of(fields), null);
+  }
+
+  /** Returns rules which always fail, for a file which cannot be compiled. */
+  static CompiledRules invalid(String error) {
+    return new CompiledRules(ImmutableList.of(), AccessSet.of(EnumSet.noneOf(Field.class)), error);
+  }
+
+  /**
+   * Compiles a requirement.
+   *
+   * @param fields the fields of the change read by the conditions are added to this set.
+   */
+  private static Requirement compileRequirement(Config cfg, String name, Set<Field> fields)
+      throws ConfigInvalidException {
+    for (String key : cfg.getNames(SECTION, name)) {
+      if (!KEYS.contains(key)) {
+        throw new ConfigInvalidException(
+            String.format("Unknown key %s in requirement \"%s\"", key, name));
+      }
+    }
+
+    List<Condition> conditions = new ArrayList<>();
+    String label = cfg.getString(SECTION, name, "label");
+    if (label != null) {
+      short minValue = getShort(cfg, name, "minValue", (short) 1);
+      boolean ignoreSelfApproval = cfg.getBoolean(SECTION, name, "ignoreSelfApproval", false);
+      fields.add(Field.VOTES);
+      conditions.add(
+          (cd, change) ->
+              hasVote(cd.currentApprovals(), change, label, minValue, ignoreSelfApproval));
+
+      if (has(cfg, name, "vetoValue")) {
+        short vetoValue = getShort(cfg, name, "vetoValue", (short) 0);
+        conditions.add((cd, change) -> !hasVeto(cd.currentApprovals(), label, vetoValue));
+      }
+    } else if (has(cfg, name, "minValue")
+        || has(cfg, name, "ignoreSelfApproval")
+        || has(cfg, name, "vetoValue")) {
+      throw new ConfigInvalidException(
+          String.format("Requirement \"%s\" must have a label to check the votes", name));
+    }
+
+    if (has(cfg, name, "maxUnresolvedComments")) {
+      int max = cfg.getInt(SECTION, name, "maxUnresolvedComments", 0);
+      fields.add(Field.UNRESOLVED_COMMENTS);
+      conditions.add(
+          (cd, change) -> {
+            Integer count = cd.unresolvedCommentCount();
+            return count == null || count <= max;
+          });
+    }
+    if (!cfg.getBoolean(SECTION, name, "allowWorkInProgress", true)) {
+      fields.add(Field.WORK_IN_PROGRESS);
+      conditions.add((cd, change) -> !change.isWorkInProgress());
+    }
+    if (!cfg.getBoolean(SECTION, name, "allowPrivate", true)) {
+      fields.add(Field.PRIVATE);
+      conditions.add((cd, change) -> !change.isPrivate());
+    }
+
+    if (conditions.isEmpty()) {
+      throw new ConfigInvalidException(
+          String.format("Requirement \"%s\" has no condition", name));
+    }
+
+    String description = cfg.getString(SECTION, name, "description");
+    SubmitRequirement requirement =
+        SubmitRequirement.builder()
+            .setFallbackText(description != null ? description : name)
+            .setType(REQUIREMENT_TYPE)
+            .build();
+    return new Requirement(requirement, ImmutableList.copyOf(conditions));
+  }
+
+  private static boolean has(Config cfg, String name, String key) {
+    return cfg.getString(SECTION, name, key) != null;
+  }
+
+  private static short getShort(Config cfg, String name, String key, short defaultValue)
+      throws ConfigInvalidException {
+    int value = cfg.getInt(SECTION, name, key, defaultValue);
+    if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+      throw new ConfigInvalidException(
+          String.format("Invalid %s in requirement \"%s\": %d", key, name, value));
+    }
+    return (short) value;
+  }
+
+  private static boolean hasVote(
+      List<PatchSetApproval> approvals,
+      Change change,
+      String label,
+      short minValue,
+      boolean ignoreSelfApproval) {
+    // Indexed loops: no iterator is allocated.
+    for (int i = 0; i < approvals.size(); i++) {
+      PatchSetApproval approval = approvals.get(i);
+      if (approval.getValue() >= minValue
+          && approval.getLabel().equalsIgnoreCase(label)
+          && !(ignoreSelfApproval && approval.getAccountId().equals(change.getOwner()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasVeto(List<PatchSetApproval> approvals, String label, short vetoValue) {
+    for (int i = 0; i < approvals.size(); i++) {
+      PatchSetApproval approval = approvals.get(i);
+      if (approval.getValue() <= vetoValue && approval.getLabel().equalsIgnoreCase(label)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final ImmutableList<Requirement> requirements;
+  private final AccessSet accessSet;
+  @Nullable private final String error;
+
+  private CompiledRules(
+      ImmutableList<Requirement> requirements, AccessSet accessSet, @Nullable String error) {
+    this.requirements = requirements;
+    this.accessSet = accessSet;
+    this.error = error;
+  }
+
+  /** Returns the fields of the change which the requirements read. */
+  AccessSet accessSet() {
+    return accessSet;
+  }
+
+  /** Returns the records of a change, or null if the file has no requirement. */
+  @Nullable
+  Collection<SubmitRecord> evaluate(ChangeData cd, Change change) throws OrmException {
+    if (error != null) {
+      SubmitRecord errorRecord = new SubmitRecord();
+      errorRecord.status = Status.RULE_ERROR;
+      errorRecord.requirements =
+          ImmutableList.of(
+              SubmitRequirement.builder()
+                  .setFallbackText("Fix the rules.config file: " + error)
+                  .setType(INVALID_RULES)
+                  .build());
+      return ImmutableList.of(errorRecord);
+    }
+    if (requirements.isEmpty()) {
+      return null;
+    }
+
+    SubmitRecord ok = null;
+    SubmitRecord notReady = null;
+    for (int i = 0; i < requirements.size(); i++) {
+      Requirement requirement = requirements.get(i);
+      if (requirement.test(cd, change)) {
+        ok = add(ok, Status.OK, requirement.requirement);
+      } else {
+        notReady = add(notReady, Status.NOT_READY, requirement.requirement);
+      }
+    }
+
+    List<SubmitRecord> records = new ArrayList<>(2);
+    if (ok != null) {
+      records.add(ok);
+    }
+    if (notReady != null) {
+      records.add(notReady);
+    }
+    return records;
+  }
+
+  private static SubmitRecord add(
+      @Nullable SubmitRecord record, Status status, SubmitRequirement requirement) {
+    if (record == null) {
+      record = new SubmitRecord();
+      record.status = status;
+      record.requirements = new ArrayList<>();
+    }
+    record.requirements.add(requirement);
+    return record;
+  }
+
+  private static class Requirement {
+    final SubmitRequirement requirement;
+    final ImmutableList<Condition> conditions;
+
+    Requirement(SubmitRequirement requirement, ImmutableList<Condition> conditions) {
+      this.requirement = requirement;
+      this.conditions = conditions;
+    }
+
+    boolean test(ChangeData cd, Change change) throws OrmException {
+      for (int i = 0; i < conditions.size(); i++) {
+        if (!conditions.get(i).test(cd, change)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.declarative;
+
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.cache.CacheModule;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
+import org.eclipse.jgit.lib.ObjectId;
+
+public class DeclarativeEngineModule extends CacheModule {
+  static final String CACHE_NAME = "declarative_rules";
+
+  @Override
+  protected void configure() {
+    DynamicSet.bind(binder(), RuleEngine.class).to(DeclarativeRuleEngine.class);
+    // Keyed by the blob id of rules.config.
+    cache(CACHE_NAME, ObjectId.class, CompiledRules.class).maximumWeight(1000);
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.declarative;
+
+import com.google.common.cache.Cache;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.project.SubmitRuleOptions;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesMetrics;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
+import java.io.IOException;
+import java.util.Collection;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Evaluates the requirements declared in the rules.config file of refs/meta/config. Common
+ * policies do not need a script: they are compiled once per version of the file, and evaluated
+ * without a JavaScript runtime. See {@link CompiledRules} for the syntax.
+ */
+class DeclarativeRuleEngine implements RuleEngine {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String NAME = "declarative";
+  static final String RULES_FILE = "rules.config";
+
+  private final RulesMetrics metrics;
+  private final Cache<ObjectId, CompiledRules> compiledRules;
+
+  @Inject
+  private DeclarativeRuleEngine(
+      RulesMetrics metrics,
+      @Named(DeclarativeEngineModule.CACHE_NAME) Cache<ObjectId, CompiledRules> compiledRules) {
+    this.metrics = metrics;
+    this.compiledRules = compiledRules;
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public Collection<SubmitRecord> evaluate(
+      ChangeData cd, Change change, SubmitRuleOptions opts, FileFinder fileFinder)
+      throws IOException, OrmException, RuleEvalException {
+    CompiledRules rules;
+    try (Timer2.Context ctx = metrics.startRead(NAME, change.getProject())) {
+      rules = load(change.getProject(), fileFinder);
+    }
+    return rules != null ? rules.evaluate(cd, change) : null;
+  }
+
+  @Override
+  @Nullable
+  public AccessSet accessSet(Project.NameKey project, FileFinder fileFinder)
+      throws RuleEvalException {
+    CompiledRules rules = load(project, fileFinder);
+    return rules != null ? rules.accessSet() : null;
+  }
+
+  /** Returns the compiled rules of the project, or null if it has no rules.config file. */
+  @Nullable
+  private CompiledRules load(Project.NameKey project, FileFinder fileFinder)
+      throws RuleEvalException {
+    try {
+      if (!fileFinder.pointAtMetaConfig()) {
+        // The refs/meta/config branch does not exist
+        return null;
+      }
+
+      ObjectId rulesId = fileFinder.findFile(RULES_FILE);
+      if (rulesId == null) {
+        return null;
+      }
+
+      CompiledRules rules = compiledRules.getIfPresent(rulesId);
+      if (rules == null) {
+        rules = compile(project, fileFinder.readFile(RULES_FILE));
+        compiledRules.put(rulesId.copy(), rules);
+      }
+      return rules;
+    } catch (IOException e) {
+      throw new RuleEvalException("Could not read " + RULES_FILE, e);
+    }
+  }
+
+  private static CompiledRules compile(Project.NameKey project, String text) {
+    try {
+      return CompiledRules.compile(text != null ? text : "");
+    } catch (ConfigInvalidException e) {
+      logger.atWarning().log("Invalid %s in %s: %s", RULES_FILE, project, e.getMessage());
+      return CompiledRules.invalid(e.getMessage());
+    }
+  }
+}
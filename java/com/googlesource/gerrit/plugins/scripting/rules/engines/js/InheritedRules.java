@@ -0,0 +1,144 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.server.cache.serialize.CacheSerializer;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesEvaluator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+/**
+ * The rules.js files of a project and of its parents, combined in a single script.
+ *
+ * <p>The script is identified by its blob id, so that projects inheriting the same files share the
+ * same compiled script and the same cached results. When a single file applies, the script is the
+ * file itself, and its id is the id of the file.
+ *
+ * <p>The {@link AccessSet} of the script is computed once, when the script is loaded, and cached
+ * with it, on disk too.
+ */
+public class InheritedRules implements RulesEvaluator.Rules {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ObjectId id;
+  private final String script;
+  private final String name;
+  private volatile AccessSet accessSet;
+
+  InheritedRules(String script, String name) {
+    try (ObjectInserter.Formatter f = new ObjectInserter.Formatter()) {
+      this.id = f.idFor(Constants.OBJ_BLOB, script.getBytes(UTF_8));
+    }
+    this.script = script;
+    this.name = name;
+    this.accessSet = AccessSet.analyze(script);
+  }
+
+  private InheritedRules(ObjectId id, String script, String name, AccessSet accessSet) {
+    this.id = id;
+    this.script = script;
+    this.name = name;
+    this.accessSet = accessSet;
+  }
+
+  /** Returns the blob id of the script. */
+  @Override
+  public ObjectId id() {
+    return id;
+  }
+
+  public String script() {
+    return script;
+  }
+
+  /** Returns the name of the script in the stack traces. */
+  public String name() {
+    return name;
+  }
+
+  /** Returns the fields of the changes which the script may read. */
+  @Override
+  public AccessSet accessSet() {
+    return accessSet;
+  }
+
+  /**
+   * Checks that an evaluation only read fields of the access set it was fingerprinted with. If it
+   * did not, the static analysis missed a field: it is given up on, and all the fields are read
+   * from now on.
+   *
+   * @return whether the result of the evaluation can be cached.
+   */
+  @Override
+  public boolean checkAccessSet(AccessSet expected, Set<Field> accessed) {
+    if (expected.containsAll(accessed)) {
+      return true;
+    }
+    logger.atWarning().log(
+        "%s read %s, which the analysis of its source missed", name, expected.missing(accessed));
+    accessSet = AccessSet.ALL;
+    return false;
+  }
+
+  /** Writes the id, the access set, the name and the script. */
+  enum Serializer implements CacheSerializer<InheritedRules> {
+    INSTANCE;
+
+    @Override
+    public byte[] serialize(InheritedRules rules) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        rules.id.copyRawTo(out);
+        out.writeInt(rules.accessSet.bits());
+        out.writeUTF(rules.name);
+        // Scripts can be longer than what writeUTF supports.
+        byte[] script = rules.script.getBytes(UTF_8);
+        out.writeInt(script.length);
+        out.write(script);
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot serialize " + rules.name, e);
+      }
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public InheritedRules deserialize(byte[] in) {
+      try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(in))) {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        data.readFully(raw);
+        AccessSet accessSet = AccessSet.fromBits(data.readInt());
+        String name = data.readUTF();
+        byte[] script = new byte[data.readInt()];
+        data.readFully(script);
+        return new InheritedRules(
+            ObjectId.fromRaw(raw), new String(script, UTF_8), name, accessSet);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Invalid rules", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.eclipsesource.v8.JavaCallback;
+import com.eclipsesource.v8.V8;
+import com.eclipsesource.v8.V8Array;
+import com.eclipsesource.v8.V8Function;
+import com.eclipsesource.v8.V8Object;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.ThrowingSupplier;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * The {@code change} object given to {@code submit_rule}.
+ *
+ * <p>The prototype of the change objects, with their getters and methods, is installed once per
+ * runtime. Its host functions read the change currently bound to the runtime, so that an
+ * evaluation only needs to create an empty object.
+ */
+class JsChangeApi {
+  /**
+   * Returns a function creating change objects. The host object holds the Java callbacks, and is
+   * only reachable through the closures: rules cannot replace them.
+   */
+  private static final String CHANGE_PROTOTYPE =
+      "(function(host) {\n"
+          + "  function getter(name) {\n"
+          + "    var get = host[name];\n"
+          + "    return { get: function() { return get(); }, enumerable: true };\n"
+          + "  }\n"
+          + "  function Account(id) {\n"
+          + "    this.hasEmail = function(email) { return hasEmail(id, email); };\n"
+          + "  }\n"
+          + "  var hasEmail = host.hasEmail;\n"
+          + "  var findVotes = host.findVotes;\n"
+          + "  function Change() {}\n"
+          + "  Object.defineProperties(Change.prototype, {\n"
+          + "    subject: getter('subject'),\n"
+          + "    branch: getter('branch'),\n"
+          + "    private: getter('private'),\n"
+          + "    work_in_progress: getter('wip'),\n"
+          + "    wip: getter('wip'),\n"
+          + "    unresolved_comments_count: getter('unresolved_comments_count')\n"
+          + "  });\n"
+          + "  Change.prototype.author = host.author;\n"
+          + "  Change.prototype.committer = host.committer;\n"
+          // Votes are returned as a flat array of (label, value, patch set, account) tuples.
+          + "  Change.prototype.findVotes = function() {\n"
+          + "    var raw = findVotes.apply(null, arguments);\n"
+          + "    var votes = [];\n"
+          + "    for (var i = 0; i < raw.length; i += 4) {\n"
+          + "      votes.push({\n"
+          + "        label: raw[i],\n"
+          + "        value: raw[i + 1],\n"
+          + "        patchset_id: raw[i + 2],\n"
+          + "        account: new Account(raw[i + 3])\n"
+          + "      });\n"
+          + "    }\n"
+          + "    return votes;\n"
+          + "  };\n"
+          // The prototypes are shared by all the evaluations of the runtime.
+          + "  [Change, Change.prototype, Account, Account.prototype].forEach(Object.freeze);\n"
+          + "  Object.keys(Change.prototype).forEach(function(name) {\n"
+          + "    var desc = Object.getOwnPropertyDescriptor(Change.prototype, name);\n"
+          + "    Object.freeze(desc.value || desc.get);\n"
+          + "  });\n"
+          + "  return function() { return new Change(); };\n"
+          + "})";
+
+  private final V8 v8;
+  private final V8Function newChange;
+  private ChangeContext current;
+
+  JsChangeApi(V8 v8) {
+    this.v8 = v8;
+
+    V8Object host = new V8Object(v8);
+    V8Function installer = null;
+    V8Array args = null;
+    try {
+      register(host, "subject", getter(() -> current().subject()));
+      register(host, "branch", getter(() -> current().branch()));
+      register(host, "private", getter(() -> current().isPrivate()));
+      register(host, "wip", getter(() -> current().isWorkInProgress()));
+      register(
+          host, "unresolved_comments_count", getter(() -> current().unresolvedCommentsCount()));
+      register(host, "author", person(() -> current().author()));
+      register(host, "committer", person(() -> current().committer()));
+      register(host, "findVotes", this::findVotes);
+      register(host, "hasEmail", this::hasEmail);
+
+      installer = (V8Function) v8.executeObjectScript(CHANGE_PROTOTYPE);
+      args = new V8Array(v8).push(host);
+      newChange = (V8Function) installer.call(null, args);
+    } finally {
+      if (args != null) {
+        args.release();
+      }
+      if (installer != null) {
+        installer.release();
+      }
+      host.release();
+    }
+  }
+
+  /**
+   * Binds a change to the runtime, until {@link #unbind()} is called.
+   *
+   * @return a new change object for the rules.
+   */
+  V8Object bind(ChangeContext change) {
+    current = change;
+    return (V8Object) newChange.call(null, null);
+  }
+
+  void unbind() {
+    current = null;
+  }
+
+  void release() {
+    newChange.release();
+  }
+
+  private static void register(V8Object host, String name, JavaCallback callback) {
+    host.registerJavaMethod(callback, name);
+  }
+
+  private ChangeContext current() {
+    if (current == null) {
+      throw new IllegalStateException("No change is being evaluated");
+    }
+    return current;
+  }
+
+  private Object findVotes(V8Object receiver, V8Array parameters) {
+    String label = parameters.getString(0);
+    Integer value = parameters.length() >= 2 ? parameters.getInteger(1) : null;
+
+    V8Array v8Votes = new V8Array(v8);
+    try {
+      for (PatchSetApproval approval : current().findVotes(label, value)) {
+        v8Votes.push(approval.getLabel());
+        v8Votes.push(approval.getValue());
+        v8Votes.push(approval.getPatchSetId().patchSetId);
+        v8Votes.push(approval.getAccountId().get());
+      }
+    } catch (Exception e) {
+      v8Votes.release();
+      throw new RuntimeException(e);
+    }
+    return v8Votes;
+  }
+
+  private Object hasEmail(V8Object receiver, V8Array parameters) {
+    try {
+      Account.Id accountId = new Account.Id(parameters.getInteger(0));
+      return current().hasEmail(accountId, parameters.getString(1));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static JavaCallback getter(ThrowingSupplier<?, ?> supplier) {
+    return (receiver, parameters) -> {
+      try {
+        return supplier.get();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    };
+  }
+
+  private JavaCallback person(ThrowingSupplier<PersonIdent, ?> supplier) {
+    return (receiver, parameters) -> {
+      PersonIdent person;
+      try {
+        person = supplier.get();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      V8Object v8Person = new V8Object(v8);
+      v8Person.add("email", person.getEmailAddress());
+      v8Person.add("name", person.getName());
+      return v8Person;
+    };
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Settings of the JavaScript engines, read from the plugin section of gerrit.config and, for the
+ * settings which can be tuned per project, of project.config.
+ */
+@Singleton
+public class JsEngineConfig {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final PluginConfigFactory cfgFactory;
+  private final String pluginName;
+  private final long defaultTimeoutMs;
+  private final long maxTimeoutMs;
+  private final int poolMinIdle;
+  private final int poolMaxSize;
+  private final long poolIdleTimeoutMs;
+  private final long poolMaxWaitMs;
+  private final boolean inheritRules;
+  private final boolean profileCallbacks;
+  private final boolean failOnHandleLeaks;
+
+  @Inject
+  JsEngineConfig(
+      @GerritServerConfig Config cfg,
+      PluginConfigFactory cfgFactory,
+      @PluginName String pluginName) {
+    this.cfgFactory = cfgFactory;
+    this.pluginName = pluginName;
+    maxTimeoutMs =
+        Math.max(
+            1,
+            ConfigUtil.getTimeUnit(
+                cfg, "plugin", pluginName, "maxTimeout", SECONDS.toMillis(5), MILLISECONDS));
+    defaultTimeoutMs =
+        clamp(ConfigUtil.getTimeUnit(cfg, "plugin", pluginName, "timeout", 300, MILLISECONDS));
+    poolMaxSize =
+        Math.max(
+            1,
+            cfg.getInt(
+                "plugin",
+                pluginName,
+                "poolMaxSize",
+                2 * Runtime.getRuntime().availableProcessors()));
+    poolMinIdle =
+        Math.min(poolMaxSize, Math.max(0, cfg.getInt("plugin", pluginName, "poolMinIdle", 0)));
+    poolIdleTimeoutMs =
+        ConfigUtil.getTimeUnit(
+            cfg, "plugin", pluginName, "poolIdleTimeout", MINUTES.toMillis(5), MILLISECONDS);
+    poolMaxWaitMs =
+        ConfigUtil.getTimeUnit(
+            cfg, "plugin", pluginName, "poolMaxWait", SECONDS.toMillis(5), MILLISECONDS);
+    inheritRules = cfg.getBoolean("plugin", pluginName, "inheritRules", false);
+    profileCallbacks = cfg.getBoolean("plugin", pluginName, "profileCallbacks", false);
+    failOnHandleLeaks = cfg.getBoolean("plugin", pluginName, "failOnHandleLeaks", false);
+  }
+
+  /**
+   * Returns how long the rules of a project may run. Projects can override the server's default,
+   * within the limit set by the server.
+   */
+  public long timeoutMs(Project.NameKey project) {
+    String value;
+    try {
+      value =
+          cfgFactory.getFromProjectConfigWithInheritance(project, pluginName).getString("timeout");
+    } catch (NoSuchProjectException e) {
+      return defaultTimeoutMs;
+    }
+    if (value == null) {
+      return defaultTimeoutMs;
+    }
+
+    long timeoutMs;
+    try {
+      timeoutMs = ConfigUtil.getTimeUnit(value, -1, MILLISECONDS);
+    } catch (IllegalArgumentException e) {
+      timeoutMs = -1;
+    }
+    if (timeoutMs < 0) {
+      logger.atWarning().log("Invalid timeout \"%s\" in %s, using the default", value, project);
+      return defaultTimeoutMs;
+    }
+    return clamp(timeoutMs);
+  }
+
+  /**
+   * Returns whether the calls of the rules of a project to the change object are measured.
+   * Projects can override the server's default.
+   */
+  public boolean profileCallbacks(Project.NameKey project) {
+    try {
+      return cfgFactory
+          .getFromProjectConfigWithInheritance(project, pluginName)
+          .getBoolean("profileCallbacks", profileCallbacks);
+    } catch (NoSuchProjectException e) {
+      return profileCallbacks;
+    }
+  }
+
+  private long clamp(long timeoutMs) {
+    return Math.min(Math.max(1, timeoutMs), maxTimeoutMs);
+  }
+
+  /** Whether the rules.js files of the parent projects apply to their children. */
+  public boolean inheritRules() {
+    return inheritRules;
+  }
+
+  /**
+   * Whether an evaluation leaving handles to V8 values unreleased fails, instead of only discarding
+   * its runtime. Meant for tests.
+   */
+  boolean failOnHandleLeaks() {
+    return failOnHandleLeaks;
+  }
+
+  /** Number of idle runtimes kept alive even when they are not used. */
+  int poolMinIdle() {
+    return poolMinIdle;
+  }
+
+  /** Maximum number of runtimes alive at the same time, leased or idle. */
+  int poolMaxSize() {
+    return poolMaxSize;
+  }
+
+  /** Delay after which an unused runtime is released, unless it is needed to honor the minimum. */
+  long poolIdleTimeoutMs() {
+    return poolIdleTimeoutMs;
+  }
+
+  /** How long an evaluation waits for a runtime when all of them are leased. */
+  long poolMaxWaitMs() {
+    return poolMaxWaitMs;
+  }
+}
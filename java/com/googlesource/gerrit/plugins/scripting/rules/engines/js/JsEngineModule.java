@@ -15,12 +15,17 @@
 package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
 
 import com.google.gerrit.extensions.registration.DynamicSet;
-import com.google.inject.AbstractModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
 
-public class JsEngineModule extends AbstractModule {
+public class JsEngineModule extends LifecycleModule {
   @Override
   protected void configure() {
     DynamicSet.bind(binder(), RuleEngine.class).to(JsRuleEngine.class);
+    bind(RulesDryRun.class).to(JsRuleEngine.class);
+    bind(RulesWarmUp.class).to(JsRuleEngine.class);
+    listener().to(JsRuntimePool.class);
+    listener().to(JsWatchdog.class);
+    install(RulesResolver.module());
   }
 }
@@ -0,0 +1,57 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/** Metrics specific to the V8 runtimes. */
+@Singleton
+class JsMetrics {
+  final Timer0 runtimeCreation;
+  final Timer1<String> scriptLoad;
+  final Counter1<String> leakedHandles;
+
+  @Inject
+  JsMetrics(MetricMaker metricMaker) {
+    runtimeCreation =
+        metricMaker.newTimer(
+            "js/runtime_creation_latency",
+            new Description("Time spent creating a V8 runtime and installing the change API")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    scriptLoad =
+        metricMaker.newTimer(
+            "js/script_load_latency",
+            new Description("Time spent compiling rules.js")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofString("project", "project of the rules"));
+    leakedHandles =
+        metricMaker.newCounter(
+            "js/leaked_handles",
+            new Description("Handles to V8 values left unreleased by the evaluations")
+                .setRate()
+                .setUnit("handles"),
+            Field.ofString("project", "project of the rules"));
+  }
+}
@@ -14,134 +14,414 @@
 
 package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
 
-import com.eclipsesource.v8.JavaCallback;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import com.eclipsesource.v8.Releasable;
 import com.eclipsesource.v8.V8;
 import com.eclipsesource.v8.V8Array;
+import com.eclipsesource.v8.V8Function;
 import com.eclipsesource.v8.V8Object;
 import com.eclipsesource.v8.V8RuntimeException;
+import com.eclipsesource.v8.V8ScriptException;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.SubmitRecord;
 import com.google.gerrit.common.data.SubmitRecord.Status;
 import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.metrics.Timer2;
 import com.google.gerrit.reviewdb.client.Change;
-import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.account.AccountCache;
-import com.google.gerrit.server.account.AccountState;
-import com.google.gerrit.server.account.externalids.ExternalId;
 import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.project.SubmitRuleEvaluator;
 import com.google.gerrit.server.project.SubmitRuleOptions;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gwtorm.server.OrmException;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
 import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesEvaluator;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesMetrics;
 import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
-import com.googlesource.gerrit.plugins.scripting.rules.utils.ThrowingSupplier;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
-import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ObjectId;
+
+class JsRuleEngine implements RuleEngine, RulesDryRun, RulesWarmUp {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String NAME = "js";
+
+  private static final ImmutableList<String> RESOURCE_ERRORS =
+      ImmutableList.of(
+          "RangeError: Maximum call stack size exceeded",
+          "RangeError: Invalid array length",
+          "RangeError: Invalid string length",
+          "RangeError: Invalid typed array length",
+          "RangeError: Array buffer allocation failed");
 
-class JsRuleEngine implements RuleEngine {
-  private static final String SLOW_RULE = "Rule execution did not terminate in time";
-  private static final long TIMEOUT_DELAY = 300;
   private final AccountCache accountCache;
+  private final JsEngineConfig config;
+  private final RulesEvaluator evaluator;
+  private final JsMetrics jsMetrics;
+  private final RulesMetrics metrics;
+  private final JsRuntimePool runtimePool;
+  private final RulesResolver rulesResolver;
+  private final JsWatchdog watchdog;
 
   @Inject
-  private JsRuleEngine(AccountCache accountCache) {
+  private JsRuleEngine(
+      AccountCache accountCache,
+      JsEngineConfig config,
+      RulesEvaluator evaluator,
+      JsMetrics jsMetrics,
+      RulesMetrics metrics,
+      JsRuntimePool runtimePool,
+      RulesResolver rulesResolver,
+      JsWatchdog watchdog) {
     this.accountCache = accountCache;
+    this.config = config;
+    this.evaluator = evaluator;
+    this.jsMetrics = jsMetrics;
+    this.metrics = metrics;
+    this.runtimePool = runtimePool;
+    this.rulesResolver = rulesResolver;
+    this.watchdog = watchdog;
+  }
+
+  @Override
+  public String name() {
+    return NAME;
   }
 
   @Override
   public Collection<SubmitRecord> evaluate(
       ChangeData cd, Change change, SubmitRuleOptions opts, FileFinder fileFinder)
       throws IOException, OrmException, RuleEvalException {
-    if (!fileFinder.pointAtMetaConfig()) {
-      // The refs/meta/config branch does not exist
+    InheritedRules rules = findRules(change.getProject());
+    if (rules == null) {
       return null;
     }
 
-    String jsRules;
-    try {
-      jsRules = fileFinder.readFile("rules.js");
-    } catch (IOException e) {
-      throw new RuleEvalException("Could not read rules.js", e);
+    try (Session session = new Session(change.getProject(), rules)) {
+      return session.evaluate(cd, change);
     }
+  }
 
-    if (jsRules == null) {
-      // The rules.js file does not exist
-      return null;
+  @Override
+  @Nullable
+  public AccessSet accessSet(Project.NameKey project, FileFinder fileFinder)
+      throws RuleEvalException {
+    InheritedRules rules = rulesResolver.resolve(project);
+    return rules != null ? rules.accessSet() : null;
+  }
+
+  /**
+   * Evaluates all the changes with a single runtime, which only loads the rules once and is
+   * scrubbed between the changes. The rules are only read once too, and the fields of the changes
+   * they read are loaded in bulk.
+   *
+   * @throws IllegalArgumentException if a change does not belong to the project: it would be
+   *     evaluated with the rules of another project.
+   */
+  @Override
+  public Map<Change.Id, Collection<SubmitRecord>> evaluate(
+      Project.NameKey project,
+      Collection<ChangeData> changes,
+      SubmitRuleOptions opts,
+      FileFinder fileFinder)
+      throws IOException, OrmException, RuleEvalException {
+    for (ChangeData cd : changes) {
+      checkArgument(
+          project.equals(cd.project()), "Change %s is not in %s", cd.getId(), project.get());
     }
 
-    try {
-      return runScriptInSandbox(jsRules, change, cd);
-    } catch (V8RuntimeException e) {
-      SubmitRecord errorRecord = new SubmitRecord();
-      errorRecord.status = Status.RULE_ERROR;
-      errorRecord.requirements =
-          ImmutableList.of(
-              SubmitRequirement.builder()
-                  .setFallbackText("Fix the rules.js file!")
-                  .setType("rules_js_invalid")
-                  .build());
-      if (opts.logErrors() || true) {
-        e.printStackTrace();
+    Map<Change.Id, Collection<SubmitRecord>> results = new LinkedHashMap<>();
+    InheritedRules rules = findRules(project);
+    if (rules == null) {
+      return results;
+    }
+    rules.accessSet().prefetch(changes, accountCache);
+
+    try (Session session = new Session(project, rules)) {
+      for (ChangeData cd : changes) {
+        Collection<SubmitRecord> records;
+        try {
+          records = session.evaluate(cd, cd.change());
+        } catch (IOException | OrmException | RuleEvalException e) {
+          records = SubmitRuleEvaluator.createRuleError("Error evaluating the rules");
+        }
+        if (records != null) {
+          results.put(cd.getId(), records);
+        }
       }
-      return ImmutableList.of(errorRecord);
     }
+    return results;
   }
 
-  private Collection<SubmitRecord> runScriptInSandbox(String script, Change change, ChangeData cd)
-      throws IOException, OrmException {
-    V8 v8 = V8.createV8Runtime();
-    try {
-      final AtomicBoolean finished = new AtomicBoolean(false);
-
-      // Setup the Requirement prototype
-      v8.executeVoidScript(
-          "function Requirement(is_met, description) {\n"
-              + "this.is_met = is_met;\n"
-              + "this.description = description;\n"
-              + "};");
-      startWatchdog(v8, finished);
-
-      v8.executeScript(script, change.getProject().get() + ":/rules.js", 0);
-      if (finished.get()) {
-        throw new RuntimeException(SLOW_RULE);
+  @Override
+  public Collection<SubmitRecord> dryRun(
+      Project.NameKey project, InheritedRules rules, ChangeContext change)
+      throws RuleEvalException {
+    try (Session session = new Session(project, rules)) {
+      return session.evaluateUncached(change);
+    }
+  }
+
+  /**
+   * Loads the rules in a runtime, which goes back to the pool with the rules loaded: the next
+   * evaluation does not compile them again.
+   */
+  @Override
+  public void warmUp(Project.NameKey project, InheritedRules rules) throws RuleEvalException {
+    try (Session session = new Session(project, rules)) {
+      session.load();
+    }
+  }
+
+  /** Returns the rules which apply to a project, or null if there are none. */
+  @Nullable
+  private InheritedRules findRules(Project.NameKey project) throws RuleEvalException {
+    try (Timer2.Context ctx = metrics.startRead(NAME, project)) {
+      return rulesResolver.resolve(project);
+    }
+  }
+
+  /**
+   * V8 reports allocations and recursions which exceed its limits with a RangeError. Only these
+   * messages are matched: the other RangeErrors, e.g. an invalid argument of {@code toFixed}, are
+   * bugs of the rules.
+   */
+  private static boolean isResourceExhaustion(V8RuntimeException e) {
+    if (!(e instanceof V8ScriptException)) {
+      return false;
+    }
+    String message = Strings.nullToEmpty(((V8ScriptException) e).getJSMessage());
+    return RESOURCE_ERRORS.stream().anyMatch(message::startsWith);
+  }
+
+  /**
+   * Evaluations of one version of the rules of a project. The runtime is leased on the first
+   * evaluation which needs it, and kept until the session is closed. It is scrubbed before each
+   * evaluation but the first, so that the globals set while evaluating a change are not visible to
+   * the next one.
+   */
+  private class Session implements AutoCloseable {
+    private final Project.NameKey project;
+    private final InheritedRules rules;
+    private final ObjectId rulesId;
+    private long timeoutMs = -1;
+    private Boolean profileCallbacks;
+    private JsRuntimePool.Lease lease;
+    private boolean used;
+
+    Session(Project.NameKey project, InheritedRules rules) {
+      this.project = project;
+      this.rules = rules;
+      this.rulesId = rules.id();
+    }
+
+    /** The settings of the project are only read when an evaluation misses the result cache. */
+    private long timeoutMs() {
+      if (timeoutMs < 0) {
+        timeoutMs = config.timeoutMs(project);
+      }
+      return timeoutMs;
+    }
+
+    private boolean profileCallbacks() {
+      if (profileCallbacks == null) {
+        profileCallbacks = config.profileCallbacks(project);
       }
+      return profileCallbacks;
+    }
 
-      V8Object v8Change = prepareChangeObject(v8, change, cd);
-      V8Array v8Requirements = new V8Array(v8);
+    @Nullable
+    Collection<SubmitRecord> evaluate(ChangeData cd, Change change)
+        throws IOException, OrmException, RuleEvalException {
+      return evaluator.evaluate(
+          NAME, project, rules, cd, change, this::profileCallbacks, this::evaluateUncached);
+    }
 
+    @Nullable
+    Collection<SubmitRecord> evaluateUncached(ChangeContext change) throws RuleEvalException {
       try {
-        v8.executeJSFunction("submit_rule", v8Change, v8Requirements);
+        return runScriptInSandbox(change);
+      } catch (V8RuntimeException e) {
+        logger.atWarning().withCause(e).log("Error evaluating the rules of %s", project);
+        if (isResourceExhaustion(e)) {
+          return RulesEvaluator.resourcesExhausted();
+        }
+        return RulesEvaluator.invalidRules();
+      }
+    }
+
+    /** Leases a runtime and loads the rules in it, unless it already loaded them. */
+    void load() throws RuleEvalException {
+      if (lease == null) {
+        lease = runtimePool.lease(rulesId);
+      }
+      if (lease.isLoaded()) {
+        return;
+      }
 
-        if (finished.getAndSet(true)) {
-          throw new RuntimeException(SLOW_RULE);
+      V8 v8 = lease.v8();
+      JsWatchdog.Watch watch = watchdog.watch(timeoutMs(), v8::terminateExecution);
+      try (Timer1.Context ctx = jsMetrics.scriptLoad.start(project.get())) {
+        lease.load(rules.script(), rules.name());
+      } catch (RuntimeException e) {
+        boolean inTime = watch.finish();
+        // Do not reuse a runtime in which the rules could not be loaded.
+        discard();
+        if (!(e instanceof V8RuntimeException)) {
+          throw e;
         }
+        if (!inTime) {
+          throw new RuleEvalException(
+              rules.name() + " did not load within " + timeoutMs() + " ms", e);
+        }
+        throw new RuleEvalException("Invalid " + rules.name(), e);
+      } finally {
+        if (!watch.finish()) {
+          discard();
+        }
+      }
+    }
 
-        if (v8Requirements.length() == 0) {
-          // The script did not add any requirements.
-          return null;
+    @Nullable
+    private Collection<SubmitRecord> runScriptInSandbox(ChangeContext change)
+        throws RuleEvalException {
+      if (used && !lease.scrub()) {
+        // The previous evaluation left state behind which cannot be removed.
+        close();
+      }
+      if (lease == null) {
+        lease = runtimePool.lease(rulesId);
+      }
+      V8 v8 = lease.v8();
+      JsWatchdog.Watch watch = watchdog.watch(timeoutMs(), v8::terminateExecution);
+
+      try {
+        if (!lease.isLoaded()) {
+          // Only the first evaluation of a script in a runtime compiles it.
+          try (Timer1.Context ctx = jsMetrics.scriptLoad.start(project.get())) {
+            lease.load(rules.script(), rules.name());
+          } catch (RuntimeException e) {
+            watch.finish();
+            // Do not reuse a runtime in which the rules could not be loaded.
+            discard();
+            throw e;
+          }
         }
 
-        // We don't want to return records with zero requirements.
-        return parseResults(v8Requirements)
-            .stream()
-            .filter(s -> !s.requirements.isEmpty())
-            .collect(Collectors.toList());
+        int handles = v8.getObjectReferenceCount();
+        used = true;
+        Collection<SubmitRecord> results = evaluateRule(lease.runtime(), change);
+        checkHandles(handles);
+        if (!watch.finish()) {
+          return evaluator.timedOut(NAME, project, timeoutMs());
+        }
+        return results;
+      } catch (V8RuntimeException e) {
+        if (!watch.finish()) {
+          // The execution was terminated by the watchdog.
+          return evaluator.timedOut(NAME, project, timeoutMs());
+        }
+        throw e;
       } finally {
-        v8Change.release();
-        v8Requirements.release();
+        if (!watch.finish()) {
+          // The execution was terminated: don't reuse this runtime.
+          discard();
+        }
+      }
+    }
+
+    /**
+     * Discards the runtime if the evaluation left handles unreleased: they would keep their V8
+     * values alive, outside of the Java heap, as long as the runtime.
+     */
+    private void checkHandles(int before) {
+      int leaked = lease.v8().getObjectReferenceCount() - before;
+      if (leaked <= 0) {
+        return;
+      }
+      jsMetrics.leakedHandles.incrementBy(project.get(), leaked);
+      lease.discard();
+      String message = "Evaluation of " + rules.name() + " leaked " + leaked + " V8 handles";
+      if (config.failOnHandleLeaks()) {
+        throw new IllegalStateException(message);
+      }
+      logger.atWarning().atMostEvery(1, MINUTES).log("%s", message);
+    }
+
+    /** Gives the runtime back to the pool, which releases it instead of reusing it. */
+    private void discard() {
+      if (lease != null) {
+        lease.discard();
+        close();
+      }
+    }
+
+    @Override
+    public void close() {
+      if (lease != null) {
+        lease.close();
+        lease = null;
+        used = false;
       }
+    }
+  }
+
+  /**
+   * Executes the top-level code of the rules and calls their {@code submit_rule} on a change, in a
+   * runtime which loaded them. All the handles it creates are released, even when the rules fail.
+   */
+  static Collection<SubmitRecord> evaluateRule(JsRuntime runtime, ChangeContext change) {
+    JsChangeApi changeApi = runtime.changeApi();
+    V8Object v8Change = changeApi.bind(change);
+    V8Array v8Requirements = new V8Array(runtime.v8());
+    V8Array args = new V8Array(runtime.v8()).push(v8Change).push(v8Requirements);
+    V8Function submitRule = null;
+
+    try {
+      submitRule = runtime.submitRule();
+      Object returned = submitRule.call(null, args);
+      if (returned instanceof Releasable) {
+        // The return value is ignored, but objects returned by the rules come with a handle.
+        ((Releasable) returned).release();
+      }
+
+      if (v8Requirements.length() == 0) {
+        // The script did not add any requirements.
+        return null;
+      }
+
+      // We don't want to return records with zero requirements.
+      return parseResults(v8Requirements)
+          .stream()
+          .filter(s -> !s.requirements.isEmpty())
+          .collect(Collectors.toList());
     } finally {
-      v8.release();
+      if (submitRule != null) {
+        submitRule.release();
+      }
+      args.release();
+      v8Change.release();
+      v8Requirements.release();
+      changeApi.unbind();
     }
   }
 
-  private Collection<SubmitRecord> parseResults(V8Array v8Requirements) {
+  static Collection<SubmitRecord> parseResults(V8Array v8Requirements) {
     SubmitRecord okRequirements = new SubmitRecord();
     okRequirements.status = Status.OK;
     okRequirements.requirements = new ArrayList<>();
@@ -152,141 +432,23 @@ class JsRuleEngine implements RuleEngine {
 
     for (int i = 0; i < v8Requirements.length(); i++) {
       V8Object v8Requirement = v8Requirements.getObject(i);
-      SubmitRequirement requirement =
-          SubmitRequirement.builder()
-              .setFallbackText(v8Requirement.getString("description"))
-              .setType("rules_js")
-              .build();
-      boolean isMet = v8Requirement.getBoolean("is_met");
-      if (!isMet) {
-        notReadyRequirements.requirements.add(requirement);
-      } else {
-        okRequirements.requirements.add(requirement);
+      try {
+        SubmitRequirement requirement =
+            SubmitRequirement.builder()
+                .setFallbackText(v8Requirement.getString("description"))
+                .setType("rules_js")
+                .build();
+        boolean isMet = v8Requirement.getBoolean("is_met");
+        if (!isMet) {
+          notReadyRequirements.requirements.add(requirement);
+        } else {
+          okRequirements.requirements.add(requirement);
+        }
+      } finally {
+        // Released even when the requirement is invalid.
+        v8Requirement.release();
       }
-      v8Requirement.release();
     }
     return ImmutableList.of(okRequirements, notReadyRequirements);
   }
-
-  private void startWatchdog(V8 v8, AtomicBoolean finished) {
-    new Thread(
-            () -> {
-              try {
-                Thread.sleep(TIMEOUT_DELAY);
-              } catch (InterruptedException e) {
-                return;
-              }
-              if (!finished.getAndSet(true)) {
-                v8.terminateExecution();
-              }
-            })
-        .start();
-  }
-
-  private V8Object prepareChangeObject(final V8 v8, Change change, ChangeData cd)
-      throws IOException, OrmException {
-    V8Object v8Change = new V8Object(v8);
-
-    v8Change.registerJavaMethod(exposePersonIdent(v8, cd.getAuthor()), "author");
-    v8Change.registerJavaMethod(exposePersonIdent(v8, cd.getCommitter()), "committer");
-
-    defineProperty(v8Change, cd::unresolvedCommentCount, "unresolved_comments_count");
-    defineProperty(v8Change, change::isPrivate, "private");
-    defineProperty(v8Change, change::isWorkInProgress, "work_in_progress");
-    defineProperty(v8Change, change::isWorkInProgress, "wip");
-    defineProperty(v8Change, change::getSubject, "subject");
-    defineProperty(v8Change, cd.currentPatchSet()::getRefName, "branch");
-
-    v8Change.registerJavaMethod(findVotes(v8, cd.currentApprovals()), "findVotes");
-
-    return v8Change;
-  }
-
-  private JavaCallback findVotes(V8 v8, List<PatchSetApproval> patchSetApprovals) {
-    return (receiver, parameters) -> {
-      String label = parameters.getString(0);
-      Integer value = parameters.length() >= 2 ? parameters.getInteger(1) : null;
-      V8Array v8Votes = new V8Array(v8);
-
-      for (PatchSetApproval approval : patchSetApprovals) {
-        if (!label.equalsIgnoreCase(approval.getLabel())) {
-          continue;
-        }
-        if (value != null && value != approval.getValue()) {
-          continue;
-        }
-        V8Object v8Author = new V8Object(v8);
-
-        v8Author.add("label", approval.getLabel());
-        v8Author.add("value", approval.getValue());
-        v8Author.add("patchset_id", approval.getPatchSetId().patchSetId);
-
-        V8Object v8Account = new V8Object(v8);
-        v8Author.add("account", v8Account);
-        AccountState account = accountCache.getEvenIfMissing(approval.getAccountId());
-
-        v8Account.registerJavaMethod(
-            new JavaCallback() {
-              @Override
-              public Object invoke(V8Object receiver, V8Array parameters) {
-                try {
-                  String emailToCheck = parameters.getString(0);
-                  for (ExternalId extId : account.getExternalIds()) {
-                    if (emailToCheck.equalsIgnoreCase(extId.email())) {
-                      return true;
-                    }
-                  }
-                  return false;
-                } catch (Exception e) {
-                  return null;
-                }
-              }
-            },
-            "hasEmail");
-
-        v8Votes.push(v8Author);
-        v8Author.release();
-        v8Account.release();
-      }
-
-      return v8Votes;
-    };
-  }
-
-  private void defineProperty(
-      V8Object myObject, ThrowingSupplier<?, ?> supplier, String methodName) {
-    V8 v8 = myObject.getRuntime();
-    V8Object methodProperty = new V8Object(v8);
-    methodProperty.registerJavaMethod(
-        new JavaCallback() {
-          @Override
-          public Object invoke(V8Object receiver, V8Array parameters) {
-            try {
-              return supplier.get();
-            } catch (Exception e) {
-              throw new RuntimeException(e);
-            }
-          }
-        },
-        "get");
-
-    V8Object object = v8.getObject("Object");
-    V8Object ret =
-        (V8Object) object.executeJSFunction("defineProperty", myObject, methodName, methodProperty);
-
-    object.release();
-    ret.release();
-    methodProperty.release();
-  }
-
-  private JavaCallback exposePersonIdent(V8 v8, PersonIdent personIdentSupplier) {
-    return (receiver, parameters) -> {
-      PersonIdent author;
-      author = personIdentSupplier;
-      V8Object v8Author = new V8Object(v8);
-      v8Author.add("email", author.getEmailAddress());
-      v8Author.add("name", author.getName());
-      return v8Author;
-    };
-  }
 }
@@ -0,0 +1,280 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.eclipsesource.v8.V8;
+import com.eclipsesource.v8.V8Function;
+import com.eclipsesource.v8.V8RuntimeException;
+import com.google.gerrit.common.Nullable;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A V8 runtime managed by {@link JsRuntimePool}.
+ *
+ * <p>j2v8 only lets the thread holding the runtime's locker use it: the pool acquires the locker
+ * when the runtime is leased and releases it when the runtime is returned, so that the runtime can
+ * move between request threads.
+ *
+ * <p>A runtime loads at most one script, identified by the id of its blob. The script is compiled
+ * once, but its top-level code is executed again by each evaluation, so that the state it creates
+ * (e.g. {@code var seen = {}}) is never shared by two changes.
+ */
+class JsRuntime {
+  /**
+   * Returns a function restoring the objects reachable from the global object as they were when it
+   * was created: the globals and the built-ins (e.g. {@code Array.prototype}). For each object, the
+   * properties which were added are deleted, the ones which were changed or deleted are defined
+   * again, and its prototype is restored. The function returns false when an object could not be
+   * restored, e.g. because it was made non-extensible.
+   *
+   * <p>Frozen objects cannot change, and are not checked.
+   */
+  private static final String SCRUBBER =
+      "(function(global) {\n"
+          // Keep our own references, the rules may replace the built-ins.
+          + "  var apply = Reflect.apply;\n"
+          + "  var ownKeys = Reflect.ownKeys;\n"
+          + "  var define = Reflect.defineProperty;\n"
+          + "  var remove = Reflect.deleteProperty;\n"
+          + "  var getPrototype = Reflect.getPrototypeOf;\n"
+          + "  var setPrototype = Reflect.setPrototypeOf;\n"
+          + "  var isExtensible = Reflect.isExtensible;\n"
+          + "  var describe = Object.getOwnPropertyDescriptor;\n"
+          + "  var isFrozen = Object.isFrozen;\n"
+          + "  var create = Object.create;\n"
+          + "  var same = Object.is;\n"
+          + "  var hasOwn = Object.prototype.hasOwnProperty;\n"
+          + "  var FIELDS = ['value', 'writable', 'get', 'set', 'enumerable', 'configurable'];\n"
+          + "  function has(object, key) {\n"
+          + "    return apply(hasOwn, object, [key]);\n"
+          + "  }\n"
+          // Descriptors without a prototype, which the rules cannot add fields to.
+          + "  function copy(desc) {\n"
+          + "    var result = create(null);\n"
+          + "    for (var i = 0; i < FIELDS.length; i++) {\n"
+          + "      if (has(desc, FIELDS[i])) {\n"
+          + "        result[FIELDS[i]] = desc[FIELDS[i]];\n"
+          + "      }\n"
+          + "    }\n"
+          + "    return result;\n"
+          + "  }\n"
+          // Descriptors have either a value and writable, or a getter and a setter, as own fields.
+          + "  function unchanged(desc, original) {\n"
+          + "    if (has(desc, 'get') !== ('get' in original)\n"
+          + "        || desc.enumerable !== original.enumerable\n"
+          + "        || desc.configurable !== original.configurable) {\n"
+          + "      return false;\n"
+          + "    }\n"
+          + "    return 'get' in original\n"
+          + "        ? desc.get === original.get && desc.set === original.set\n"
+          + "        : desc.writable === original.writable && same(desc.value, original.value);\n"
+          + "  }\n"
+          + "  var snapshots = [];\n"
+          + "  var seen = new WeakSet();\n"
+          + "  function snapshot(object) {\n"
+          + "    var type = typeof object;\n"
+          + "    if (object === null || (type !== 'object' && type !== 'function')\n"
+          + "        || seen.has(object)) {\n"
+          + "      return;\n"
+          + "    }\n"
+          + "    seen.add(object);\n"
+          + "    var keys = ownKeys(object);\n"
+          + "    var properties = create(null);\n"
+          + "    for (var i = 0; i < keys.length; i++) {\n"
+          + "      properties[keys[i]] = copy(describe(object, keys[i]));\n"
+          + "    }\n"
+          + "    if (!isFrozen(object)) {\n"
+          + "      snapshots[snapshots.length] = {\n"
+          + "        object: object,\n"
+          + "        prototype: getPrototype(object),\n"
+          + "        extensible: isExtensible(object),\n"
+          + "        keys: keys,\n"
+          + "        properties: properties\n"
+          + "      };\n"
+          + "    }\n"
+          + "    snapshot(getPrototype(object));\n"
+          + "    for (var i = 0; i < keys.length; i++) {\n"
+          + "      var desc = properties[keys[i]];\n"
+          + "      snapshot(desc.value);\n"
+          + "      snapshot(desc.get);\n"
+          + "      snapshot(desc.set);\n"
+          + "    }\n"
+          + "  }\n"
+          + "  function restore(entry) {\n"
+          + "    var object = entry.object;\n"
+          + "    if (entry.extensible && !isExtensible(object)) {\n"
+          + "      return false;\n"
+          + "    }\n"
+          + "    var clean = same(getPrototype(object), entry.prototype)\n"
+          + "        || setPrototype(object, entry.prototype);\n"
+          + "    var keys = ownKeys(object);\n"
+          + "    for (var i = 0; i < keys.length; i++) {\n"
+          + "      if (!(keys[i] in entry.properties) && !remove(object, keys[i])) {\n"
+          + "        clean = false;\n"
+          + "      }\n"
+          + "    }\n"
+          + "    for (var i = 0; i < entry.keys.length; i++) {\n"
+          + "      var key = entry.keys[i];\n"
+          + "      var desc = describe(object, key);\n"
+          + "      var original = entry.properties[key];\n"
+          + "      if (!(desc && unchanged(desc, original)) && !define(object, key, original)) {\n"
+          + "        clean = false;\n"
+          + "      }\n"
+          + "    }\n"
+          + "    return clean;\n"
+          + "  }\n"
+          + "  snapshot(global);\n"
+          + "  return function() {\n"
+          + "    var clean = true;\n"
+          + "    for (var i = 0; i < snapshots.length; i++) {\n"
+          + "      clean = restore(snapshots[i]) && clean;\n"
+          + "    }\n"
+          + "    return clean;\n"
+          + "  };\n"
+          + "})(this)";
+
+  /**
+   * Defines the constructor of the requirements. It is frozen, like the change API, as it is shared
+   * by all the evaluations of the runtime.
+   */
+  private static final String REQUIREMENT =
+      "function Requirement(is_met, description) {\n"
+          + "  this.is_met = is_met;\n"
+          + "  this.description = description;\n"
+          + "}\n"
+          + "Object.freeze(Requirement);\n"
+          + "Object.freeze(Requirement.prototype);\n";
+
+  /**
+   * Wraps a script in a function which executes its top-level code and returns its {@code
+   * submit_rule}. The header does not end with a newline, so that the line numbers reported for the
+   * script are unchanged.
+   */
+  private static final String SCRIPT_HEADER = "(function() {";
+
+  private static final String SCRIPT_FOOTER =
+      "\n;if (typeof submit_rule !== 'function') {\n"
+          + "  throw new TypeError('submit_rule is not a function');\n"
+          + "}\n"
+          + "return submit_rule;\n"
+          + "})";
+
+  private final V8 v8;
+  private final JsChangeApi changeApi;
+  private final V8Function scrubber;
+  private ObjectId scriptId;
+  private V8Function script;
+  private long lastReturnedAt;
+  private int handles;
+
+  /** Creates a runtime, owned by the calling thread until {@link #unlock()} is called. */
+  JsRuntime() {
+    v8 = V8.createV8Runtime();
+    try {
+      v8.executeVoidScript(REQUIREMENT);
+      changeApi = new JsChangeApi(v8);
+      scrubber = (V8Function) v8.executeObjectScript(SCRUBBER);
+    } catch (RuntimeException e) {
+      v8.release();
+      throw e;
+    }
+  }
+
+  V8 v8() {
+    return v8;
+  }
+
+  JsChangeApi changeApi() {
+    return changeApi;
+  }
+
+  /** Returns the id of the script executed in this runtime, or null if there is none yet. */
+  @Nullable
+  ObjectId scriptId() {
+    return scriptId;
+  }
+
+  /** Compiles a script, without executing its top-level code. */
+  void load(ObjectId scriptId, String script, String scriptName) {
+    if (this.scriptId != null) {
+      throw new IllegalStateException("Runtime already loaded " + this.scriptId.name());
+    }
+    this.script =
+        (V8Function) v8.executeObjectScript(SCRIPT_HEADER + script + SCRIPT_FOOTER, scriptName, 0);
+    this.scriptId = scriptId.copy();
+  }
+
+  /**
+   * Executes the top-level code of the loaded script, and returns the {@code submit_rule} it
+   * defines. The caller must release it.
+   */
+  V8Function submitRule() {
+    if (script == null) {
+      throw new IllegalStateException("No script loaded");
+    }
+    return (V8Function) script.call(null, null);
+  }
+
+  /** Binds the runtime to the calling thread. */
+  void lock() {
+    v8.getLocker().acquire();
+  }
+
+  /** Unbinds the runtime from the calling thread. */
+  void unlock() {
+    v8.getLocker().release();
+  }
+
+  /**
+   * Removes the state left behind by an evaluation: the globals, the built-ins and the objects
+   * reachable from them are restored as they were before the script was loaded.
+   *
+   * @return whether the runtime can safely be reused.
+   */
+  boolean scrub() {
+    try {
+      Object clean = scrubber.call(null, null);
+      return Boolean.TRUE.equals(clean);
+    } catch (V8RuntimeException e) {
+      return false;
+    }
+  }
+
+  long lastReturnedAt() {
+    return lastReturnedAt;
+  }
+
+  /** Returns the number of handles held by the runtime when it was last returned to the pool. */
+  int handles() {
+    return handles;
+  }
+
+  /** Records when the runtime goes back to the pool. The calling thread must own the runtime. */
+  void markReturned(long now) {
+    lastReturnedAt = now;
+    handles = v8.getObjectReferenceCount();
+  }
+
+  /** Releases the native resources. The calling thread must own the runtime. */
+  void release() {
+    if (script != null) {
+      script.release();
+    }
+    scrubber.release();
+    changeApi.release();
+    // Leaks are reported when the evaluations complete: release the runtime even if there are.
+    v8.release(false);
+  }
+}
@@ -0,0 +1,358 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.eclipsesource.v8.V8;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Bounded pool of V8 runtimes, so that evaluations do not pay for the creation of a runtime, nor
+ * for the compilation of their script.
+ *
+ * <p>A runtime is used by one evaluation at a time. It is bound to the leasing thread for the
+ * duration of the lease, and its global state is scrubbed before it goes back to the pool.
+ *
+ * <p>Idle runtimes keep the script they loaded, and are preferably leased to the evaluations of the
+ * same script. When no runtime has the script loaded and the pool is full, the least recently used
+ * idle runtime is released to make room for a new one.
+ */
+@Singleton
+class JsRuntimePool implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final JsEngineConfig config;
+  private final JsMetrics metrics;
+  private final WorkQueue workQueue;
+  private final Semaphore available;
+
+  // Guarded by this. The most recently returned runtime is first.
+  private final Deque<JsRuntime> idle = new ArrayDeque<>();
+  private int alive;
+  private boolean stopped;
+
+  private ScheduledFuture<?> evictionTask;
+
+  @Inject
+  JsRuntimePool(
+      JsEngineConfig config, JsMetrics metrics, MetricMaker metricMaker, WorkQueue workQueue) {
+    this.config = config;
+    this.metrics = metrics;
+    this.workQueue = workQueue;
+    this.available = new Semaphore(config.poolMaxSize(), true);
+
+    metricMaker.newCallbackMetric(
+        "js/idle_runtime_handles",
+        Long.class,
+        new Description("Handles to V8 values held by the idle runtimes")
+            .setGauge()
+            .setUnit("handles"),
+        this::idleHandles);
+  }
+
+  /** Each runtime holds a few handles for the change API: the total grows if a runtime leaks. */
+  private synchronized long idleHandles() {
+    long handles = 0;
+    for (JsRuntime runtime : idle) {
+      handles += runtime.handles();
+    }
+    return handles;
+  }
+
+  @Override
+  public void start() {
+    long period = Math.max(1000, config.poolIdleTimeoutMs() / 2);
+    evictionTask =
+        workQueue
+            .getDefaultQueue()
+            .scheduleWithFixedDelay(this::evictIdleRuntimes, 0, period, MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (evictionTask != null) {
+      evictionTask.cancel(false);
+      evictionTask = null;
+    }
+
+    List<JsRuntime> toRelease;
+    synchronized (this) {
+      stopped = true;
+      toRelease = new ArrayList<>(idle);
+      alive -= idle.size();
+      idle.clear();
+    }
+    toRelease.forEach(JsRuntimePool::releaseIdle);
+  }
+
+  /**
+   * Leases a runtime, bound to the calling thread until the lease is closed. Waits for a runtime to
+   * be returned when the pool is exhausted.
+   *
+   * @param scriptId id of the script the caller is about to evaluate. The leased runtime has either
+   *     already loaded this script, or no script at all.
+   */
+  Lease lease(ObjectId scriptId) throws RuleEvalException {
+    try {
+      if (!available.tryAcquire(config.poolMaxWaitMs(), MILLISECONDS)) {
+        throw new RuleEvalException("No JavaScript runtime available");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuleEvalException("Interrupted while waiting for a JavaScript runtime", e);
+    }
+
+    try {
+      JsRuntime runtime;
+      JsRuntime evicted = null;
+      synchronized (this) {
+        runtime = pollIdle(scriptId);
+        if (runtime == null) {
+          if (alive >= config.poolMaxSize()) {
+            evicted = idle.pollLast();
+            if (evicted != null) {
+              alive--;
+            }
+          }
+          alive++;
+        }
+      }
+      if (evicted != null) {
+        releaseIdle(evicted);
+      }
+
+      if (runtime != null) {
+        runtime.lock();
+      } else {
+        runtime = create();
+      }
+      return new Lease(runtime, scriptId);
+    } catch (RuntimeException e) {
+      available.release();
+      throw new RuleEvalException("Could not create a JavaScript runtime", e);
+    }
+  }
+
+  /**
+   * Returns the most recently used idle runtime which already loaded the script, or else an idle
+   * runtime which did not load any script yet.
+   */
+  @Nullable
+  private JsRuntime pollIdle(ObjectId scriptId) {
+    JsRuntime empty = null;
+    for (JsRuntime runtime : idle) {
+      if (scriptId.equals(runtime.scriptId())) {
+        idle.remove(runtime);
+        return runtime;
+      }
+      if (empty == null && runtime.scriptId() == null) {
+        empty = runtime;
+      }
+    }
+    if (empty != null) {
+      idle.remove(empty);
+    }
+    return empty;
+  }
+
+  private JsRuntime create() {
+    try {
+      return newRuntime();
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        alive--;
+      }
+      throw e;
+    }
+  }
+
+  private JsRuntime newRuntime() {
+    try (Timer0.Context ctx = metrics.runtimeCreation.start()) {
+      return new JsRuntime();
+    }
+  }
+
+  private void giveBack(JsRuntime runtime, boolean reusable) {
+    try {
+      if (!reusable || !runtime.scrub()) {
+        synchronized (this) {
+          alive--;
+        }
+        runtime.release();
+        return;
+      }
+
+      runtime.markReturned(System.currentTimeMillis());
+      runtime.unlock();
+      synchronized (this) {
+        if (!stopped) {
+          idle.addFirst(runtime);
+          return;
+        }
+        alive--;
+      }
+      releaseIdle(runtime);
+    } finally {
+      available.release();
+    }
+  }
+
+  /**
+   * Releases the runtimes unused for too long, and creates the ones needed to honor the minimum.
+   * Runtimes created here have no script loaded, and are used when a script is evaluated for the
+   * first time.
+   */
+  private void evictIdleRuntimes() {
+    long deadline = System.currentTimeMillis() - config.poolIdleTimeoutMs();
+    List<JsRuntime> expired = new ArrayList<>();
+    int missing;
+    synchronized (this) {
+      // Runtimes are sorted from the most to the least recently returned.
+      Iterator<JsRuntime> it = idle.descendingIterator();
+      while (idle.size() > config.poolMinIdle() && it.hasNext()) {
+        JsRuntime runtime = it.next();
+        if (runtime.lastReturnedAt() > deadline) {
+          break;
+        }
+        it.remove();
+        expired.add(runtime);
+      }
+      alive -= expired.size();
+      missing =
+          stopped
+              ? 0
+              : Math.min(config.poolMinIdle() - idle.size(), config.poolMaxSize() - alive);
+      alive += Math.max(0, missing);
+    }
+    expired.forEach(JsRuntimePool::releaseIdle);
+
+    for (int i = 0; i < missing; i++) {
+      JsRuntime runtime;
+      try {
+        runtime = newRuntime();
+      } catch (RuntimeException e) {
+        logger.atWarning().withCause(e).log("Cannot create an idle JavaScript runtime");
+        synchronized (this) {
+          alive -= missing - i;
+        }
+        return;
+      }
+
+      runtime.markReturned(System.currentTimeMillis());
+      runtime.unlock();
+      synchronized (this) {
+        if (!stopped) {
+          // Runtimes without a script are the first ones to be evicted.
+          idle.addLast(runtime);
+          continue;
+        }
+        alive--;
+      }
+      releaseIdle(runtime);
+    }
+  }
+
+  private static void releaseIdle(JsRuntime runtime) {
+    try {
+      runtime.lock();
+      runtime.release();
+    } catch (RuntimeException e) {
+      logger.atWarning().withCause(e).log("Cannot release a JavaScript runtime");
+    }
+  }
+
+  /** A runtime leased to the calling thread. Closing the lease returns the runtime to the pool. */
+  class Lease implements AutoCloseable {
+    private final JsRuntime runtime;
+    private final ObjectId scriptId;
+    private boolean reusable = true;
+    private boolean closed;
+
+    private Lease(JsRuntime runtime, ObjectId scriptId) {
+      this.runtime = runtime;
+      this.scriptId = scriptId;
+    }
+
+    V8 v8() {
+      return runtime.v8();
+    }
+
+    JsRuntime runtime() {
+      return runtime;
+    }
+
+    /** Returns whether the leased runtime already loaded the script it was leased for. */
+    boolean isLoaded() {
+      return runtime.scriptId() != null;
+    }
+
+    /** Compiles the script this runtime was leased for. */
+    void load(String script, String scriptName) {
+      try {
+        runtime.load(scriptId, script, scriptName);
+      } catch (RuntimeException e) {
+        // Do not keep a runtime whose script could not be loaded.
+        discard();
+        throw e;
+      }
+    }
+
+    /**
+     * Removes the state left behind by the previous evaluation, before evaluating another change
+     * with the same lease.
+     *
+     * @return false if the runtime could not be restored, and must not be used anymore.
+     */
+    boolean scrub() {
+      if (runtime.scrub()) {
+        return true;
+      }
+      discard();
+      return false;
+    }
+
+    /** Marks the runtime as unsafe to reuse, e.g. because its execution was terminated. */
+    void discard() {
+      reusable = false;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      giveBack(runtime, reusable);
+    }
+  }
+}
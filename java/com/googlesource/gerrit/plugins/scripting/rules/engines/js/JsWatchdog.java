@@ -0,0 +1,123 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Stops the evaluations which do not finish in time.
+ *
+ * <p>All the deadlines are handled by a single scheduler thread, which only does some work when an
+ * evaluation overruns its deadline. The scheduler is private rather than a queue of the WorkQueue:
+ * the deadlines of the evaluations which finish in time are removed as soon as they are cancelled,
+ * instead of piling up until they expire, and they are not listed by show-queue.
+ */
+@Singleton
+class JsWatchdog implements LifecycleListener {
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  @Inject
+  JsWatchdog() {
+    scheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder()
+                .setNameFormat("ScriptingRulesWatchdog-%d")
+                .setDaemon(true)
+                .build());
+    scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /** Returns the number of deadlines which are neither cancelled nor expired. */
+  @VisibleForTesting
+  int pendingDeadlines() {
+    return scheduler.getQueue().size();
+  }
+
+  /**
+   * Starts watching an evaluation.
+   *
+   * @param timeoutMs delay after which the evaluation is considered too slow.
+   * @param onTimeout called from the scheduler thread when the evaluation overruns its deadline,
+   *     typically to terminate the execution of the script.
+   */
+  Watch watch(long timeoutMs, Runnable onTimeout) {
+    Watch watch = new Watch(onTimeout);
+    watch.timer = scheduler.schedule(watch::expire, timeoutMs, MILLISECONDS);
+    return watch;
+  }
+
+  /** The deadline of an evaluation. */
+  static class Watch {
+    private enum State {
+      RUNNING,
+      FINISHED,
+      EXPIRED
+    }
+
+    private final Runnable onTimeout;
+    private volatile ScheduledFuture<?> timer;
+    private State state = State.RUNNING;
+
+    private Watch(Runnable onTimeout) {
+      this.onTimeout = onTimeout;
+    }
+
+    private synchronized void expire() {
+      if (state == State.RUNNING) {
+        state = State.EXPIRED;
+        onTimeout.run();
+      }
+    }
+
+    /** Returns whether the deadline was overrun. */
+    synchronized boolean expired() {
+      return state == State.EXPIRED;
+    }
+
+    /**
+     * Stops watching the evaluation. Once this method returns, the timeout callback is guaranteed
+     * to either have completed or never be called.
+     *
+     * @return whether the evaluation finished in time.
+     */
+    synchronized boolean finish() {
+      if (state == State.RUNNING) {
+        state = State.FINISHED;
+        ScheduledFuture<?> t = timer;
+        if (t != null) {
+          t.cancel(false);
+        }
+      }
+      return state == State.FINISHED;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesEvaluator;
+import java.util.Collection;
+
+/**
+ * Evaluates rules which are not necessarily the current rules of a project, e.g. a rules.js file
+ * which is not merged yet. Implemented by the engine evaluating rules.js.
+ *
+ * <p>The results are not cached: each call runs the rules.
+ */
+public interface RulesDryRun {
+  /** Type of the requirement returned when the rules did not complete in time. */
+  String TIMEOUT = RulesEvaluator.TIMEOUT;
+
+  /**
+   * Evaluates the rules on a change, within the timeout of the project.
+   *
+   * @return the records of the change, or null if the rules did not add any requirement.
+   */
+  @Nullable
+  Collection<SubmitRecord> dryRun(
+      Project.NameKey project, InheritedRules rules, ChangeContext change)
+      throws RuleEvalException;
+}
@@ -0,0 +1,242 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Loads the modules required by a rules.js file, from the same revision of refs/meta/config.
+ *
+ * <p>Modules are CommonJS modules: they assign what they export to {@code module.exports}, and
+ * {@code require} them with a path relative to the requiring file, or absolute from the root of
+ * refs/meta/config. The {@code .js} extension is optional.
+ *
+ * <p>The dependencies of a module are found by looking for {@code require('...')} calls with a
+ * string literal in its source. They are cached by blob id: when a single file of a graph is
+ * edited, only this file is read and parsed again.
+ */
+@Singleton
+class RulesModules {
+  static final String CACHE_NAME = "rules_modules";
+
+  /** Upper bound of the number of modules in a graph, to stop runaway requires. */
+  static final int MAX_MODULES = 256;
+
+  private static final Pattern REQUIRE =
+      Pattern.compile("(?<![\\w$.])require\\s*\\(\\s*(['\"])([^'\"\\\\\\n]+)\\1\\s*\\)");
+
+  private final Cache<ObjectId, Module> cache;
+
+  @Inject
+  RulesModules(@Named(CACHE_NAME) Cache<ObjectId, Module> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the graph of the modules required by a file, including the file itself, or null if
+   * the file does not exist or is empty.
+   *
+   * <p>Modules which do not exist are left out of the graph: they only fail the evaluations which
+   * actually require them, like the requires found in comments.
+   *
+   * @param fileFinder pointing at the revision to read the modules from.
+   * @throws RuleEvalException if the graph is too large.
+   */
+  @Nullable
+  Graph load(FileFinder fileFinder, String root) throws IOException, RuleEvalException {
+    return load(fileFinder, root, null);
+  }
+
+  /**
+   * Like {@link #load(FileFinder, String)}, with the source of the root file given instead of read
+   * from the revision.
+   */
+  @Nullable
+  Graph load(FileFinder fileFinder, String root, @Nullable String rootSource)
+      throws IOException, RuleEvalException {
+    Map<String, Module> modules = new LinkedHashMap<>();
+    Map<String, ImmutableMap<String, String>> resolutions = new LinkedHashMap<>();
+
+    // Breadth first, so that each level of the graph is resolved with a single tree walk.
+    Set<String> level = ImmutableSet.of(root);
+    while (!level.isEmpty()) {
+      Map<String, ObjectId> ids = fileFinder.findFiles(level);
+      Map<String, Module> found = new LinkedHashMap<>();
+      for (String path : level) {
+        ObjectId id = ids.get(path);
+        if (rootSource != null && path.equals(root)) {
+          found.put(path, parse(rootSource));
+        } else if (id != null) {
+          found.put(path, get(fileFinder, id));
+        }
+      }
+      if (modules.isEmpty() && (!found.containsKey(root) || found.get(root).source.isEmpty())) {
+        return null;
+      }
+      modules.putAll(found);
+
+      Set<String> next = new LinkedHashSet<>();
+      for (Map.Entry<String, Module> e : found.entrySet()) {
+        ImmutableMap.Builder<String, String> resolved = ImmutableMap.builder();
+        for (String request : e.getValue().requests) {
+          String target = resolve(e.getKey(), request);
+          if (target == null) {
+            continue;
+          }
+          resolved.put(request, target);
+          if (!modules.containsKey(target) && !level.contains(target)) {
+            next.add(target);
+          }
+        }
+        resolutions.put(e.getKey(), resolved.build());
+      }
+
+      if (modules.size() + next.size() > MAX_MODULES) {
+        throw new RuleEvalException(root + " requires more than " + MAX_MODULES + " modules");
+      }
+      level = next;
+    }
+
+    // Requires of modules which do not exist fail at runtime.
+    resolutions.replaceAll(
+        (path, resolved) ->
+            ImmutableMap.copyOf(Maps.filterValues(resolved, modules::containsKey)));
+    return new Graph(root, modules, resolutions);
+  }
+
+  private Module get(FileFinder fileFinder, ObjectId id) throws IOException {
+    try {
+      return cache.get(id, () -> parse(Strings.nullToEmpty(fileFinder.readBlob(id))));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Cannot load module " + id.name(), e.getCause());
+    }
+  }
+
+  static Module parse(String source) {
+    Set<String> requests = new LinkedHashSet<>();
+    Matcher m = REQUIRE.matcher(source);
+    while (m.find()) {
+      requests.add(m.group(2));
+    }
+    return new Module(source, ImmutableList.copyOf(requests));
+  }
+
+  /**
+   * Returns the path of a required module, relative to the root of refs/meta/config, or null if
+   * the path points outside of refs/meta/config.
+   */
+  @Nullable
+  static String resolve(String from, String request) {
+    List<String> segments = new ArrayList<>();
+    if (!request.startsWith("/")) {
+      int slash = from.lastIndexOf('/');
+      if (slash > 0) {
+        segments.addAll(Arrays.asList(from.substring(0, slash).split("/")));
+      }
+    }
+
+    for (String segment : request.split("/")) {
+      if (segment.isEmpty() || segment.equals(".")) {
+        continue;
+      }
+      if (segment.equals("..")) {
+        if (segments.isEmpty()) {
+          return null;
+        }
+        segments.remove(segments.size() - 1);
+        continue;
+      }
+      segments.add(segment);
+    }
+    if (segments.isEmpty()) {
+      return null;
+    }
+
+    String path = String.join("/", segments);
+    return path.endsWith(".js") ? path : path + ".js";
+  }
+
+  /** The source of a module, and the module names it requires. */
+  static class Module {
+    final String source;
+    final ImmutableList<String> requests;
+
+    Module(String source, ImmutableList<String> requests) {
+      this.source = source;
+      this.requests = requests;
+    }
+  }
+
+  /** A file and the modules it requires, directly or not. */
+  static class Graph {
+    final String root;
+    /** The modules by path, starting with the root. */
+    final ImmutableMap<String, Module> modules;
+    /** For each module, the paths of the modules it requires, by module name. */
+    final ImmutableMap<String, ImmutableMap<String, String>> resolutions;
+
+    Graph(
+        String root,
+        Map<String, Module> modules,
+        Map<String, ImmutableMap<String, String>> resolutions) {
+      this.root = root;
+      this.modules = ImmutableMap.copyOf(modules);
+      this.resolutions = ImmutableMap.copyOf(resolutions);
+    }
+
+    /** Whether the file does not require any module. */
+    boolean isStandalone() {
+      return modules.get(root).requests.isEmpty();
+    }
+
+    String rootSource() {
+      return modules.get(root).source;
+    }
+  }
+
+  static class ModuleWeigher implements Weigher<ObjectId, Module> {
+    @Override
+    public int weigh(ObjectId id, Module module) {
+      return 64 + module.source.length() + 16 * module.requests.size();
+    }
+  }
+}
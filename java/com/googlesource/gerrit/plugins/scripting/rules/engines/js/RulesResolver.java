@@ -0,0 +1,533 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.serialize.CacheSerializer;
+import com.google.gerrit.server.cache.serialize.ObjectIdCacheSerializer;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Finds the rules.js files which apply to a project: its own, and the ones of its parents when
+ * inheritance is enabled.
+ *
+ * <p>The blob id of the combined rules is cached, keyed by the refs/meta/config revisions of the
+ * projects of the chain, and the rules are cached by blob id. These revisions are known by the
+ * project cache: once the rules of a chain were combined, resolving them again does not read any
+ * repository. Both caches are persisted, so that a restarted server does not read them again
+ * either.
+ */
+@Singleton
+public class RulesResolver {
+  static final String CACHE_NAME = "inherited_rules";
+  static final String SCRIPTS_CACHE = "compiled_rules";
+  static final String RULES_FILE = "rules.js";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        persist(CACHE_NAME, ChainKey.class, ObjectId.class)
+            .version(2)
+            .keySerializer(ChainKey.Serializer.INSTANCE)
+            .valueSerializer(ObjectIdCacheSerializer.INSTANCE)
+            .maximumWeight(1 << 20)
+            .diskLimit(16 << 20)
+            .weigher(ChainWeigher.class);
+        persist(SCRIPTS_CACHE, ObjectId.class, InheritedRules.class)
+            .version(2)
+            .keySerializer(ObjectIdCacheSerializer.INSTANCE)
+            .valueSerializer(InheritedRules.Serializer.INSTANCE)
+            .maximumWeight(4 << 20)
+            .diskLimit(64 << 20)
+            .weigher(RulesWeigher.class);
+        cache(RulesModules.CACHE_NAME, ObjectId.class, RulesModules.Module.class)
+            .maximumWeight(4 << 20)
+            .weigher(RulesModules.ModuleWeigher.class);
+        bind(RulesModules.class);
+        bind(RulesResolver.class);
+      }
+    };
+  }
+
+  /**
+   * Each file runs in its own function scope, so that the top-level declarations of the files do
+   * not collide. The resulting submit_rule calls the submit_rule of each file, parents first.
+   *
+   * <p>Each file is given its own requirements array, so that a child cannot remove or replace the
+   * requirements of its parents: the arrays are concatenated once the file returns.
+   */
+  private static final String HEADER =
+      "var submit_rule = (function(rules) {\n"
+          + "  return function(change, requirements) {\n"
+          + "    for (var i = 0; i < rules.length; i++) {\n"
+          + "      var own = [];\n"
+          + "      rules[i](change, own);\n"
+          + "      for (var j = 0; j < own.length; j++) {\n"
+          + "        requirements.push(own[j]);\n"
+          + "      }\n"
+          + "    }\n"
+          + "  };\n"
+          + "})([\n";
+
+  private static final String FILE_HEADER = "(function(require) {\n";
+
+  private static final String FILE_FOOTER =
+      "\n;return typeof submit_rule === 'function' ? submit_rule : function() {};\n})";
+
+  private static final String FOOTER = "\n]);\n";
+
+  /**
+   * Returns the {@code require} function of a file, given the module functions and the resolved
+   * names of the modules, by path. Each module is executed once, the first time it is required,
+   * with the {@code module}, {@code exports} and {@code require} of CommonJS.
+   */
+  private static final String LOADER =
+      "(function(factories, resolutions, root) {\n"
+          + "  var has = Object.prototype.hasOwnProperty;\n"
+          + "  var loaded = {};\n"
+          + "  function requireFrom(from) {\n"
+          + "    return function(name) {\n"
+          + "      var paths = resolutions[from];\n"
+          + "      if (!has.call(paths, name)) {\n"
+          + "        throw new Error(\"Cannot find module '\" + name + \"' from \" + from);\n"
+          + "      }\n"
+          + "      var path = paths[name];\n"
+          + "      if (!has.call(loaded, path)) {\n"
+          + "        var module = { exports: {} };\n"
+          + "        loaded[path] = module;\n"
+          + "        factories[path].call(\n"
+          + "            module.exports, module, module.exports, requireFrom(path));\n"
+          + "      }\n"
+          + "      return loaded[path].exports;\n"
+          + "    };\n"
+          + "  }\n"
+          + "  return requireFrom(root);\n"
+          + "})";
+
+  private static final String MODULE_HEADER = "function(module, exports, require) {\n";
+
+  private static final String MODULE_FOOTER = "\n}";
+
+  private final JsEngineConfig config;
+  private final ProjectCache projectCache;
+  private final GitRepositoryManager gitMgr;
+  private final FileFinder.Factory fileFinders;
+  private final RulesModules rulesModules;
+  private final Cache<ChainKey, ObjectId> chains;
+  private final Cache<ObjectId, InheritedRules> scripts;
+
+  @Inject
+  RulesResolver(
+      JsEngineConfig config,
+      ProjectCache projectCache,
+      GitRepositoryManager gitMgr,
+      FileFinder.Factory fileFinders,
+      RulesModules rulesModules,
+      @Named(CACHE_NAME) Cache<ChainKey, ObjectId> chains,
+      @Named(SCRIPTS_CACHE) Cache<ObjectId, InheritedRules> scripts) {
+    this.config = config;
+    this.projectCache = projectCache;
+    this.gitMgr = gitMgr;
+    this.fileFinders = fileFinders;
+    this.rulesModules = rulesModules;
+    this.chains = chains;
+    this.scripts = scripts;
+  }
+
+  /** Returns the rules which apply to a project, or null if there are none. */
+  @Nullable
+  public InheritedRules resolve(Project.NameKey project) throws RuleEvalException {
+    return resolve(project, (ObjectId) null);
+  }
+
+  /**
+   * Returns the rules which would apply to a project if its refs/meta/config was at another
+   * revision, or null if there would be none. The parent projects keep their current rules.
+   */
+  @Nullable
+  public InheritedRules resolve(Project.NameKey project, @Nullable ObjectId revision)
+      throws RuleEvalException {
+    return resolve(project, project, revision);
+  }
+
+  /**
+   * Returns the rules which would apply to a project if the refs/meta/config of the project or of
+   * one of its parents was at another revision, or null if there would be none.
+   *
+   * @param updated the project whose revision is given, if it is in the chain of the project.
+   */
+  @Nullable
+  public InheritedRules resolve(
+      Project.NameKey project, Project.NameKey updated, @Nullable ObjectId revision)
+      throws RuleEvalException {
+    ChainKey key = chain(project, updated, revision);
+    if (key == null || key.projects.isEmpty()) {
+      return null;
+    }
+    try {
+      ObjectId id = chains.get(key, () -> store(combine(key)));
+      if (id.equals(ObjectId.zeroId())) {
+        return null;
+      }
+      InheritedRules rules = scripts.getIfPresent(id);
+      if (rules == null) {
+        // The rules were evicted before their chain.
+        rules = combine(key);
+        store(rules);
+      }
+      return rules;
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), RuleEvalException.class);
+      throw new RuleEvalException("Cannot read the rules of " + project, e.getCause());
+    }
+  }
+
+  /**
+   * Returns the rules which would apply to a project if its rules.js was replaced by a script, or
+   * null if the project does not exist. The modules required by the script are read from the
+   * current refs/meta/config of the project, and the parent projects keep their current rules.
+   *
+   * <p>The result is not cached.
+   */
+  @Nullable
+  public InheritedRules resolve(Project.NameKey project, String script)
+      throws RuleEvalException {
+    ChainKey key = chain(project, project, null);
+    if (key == null) {
+      return null;
+    }
+
+    List<RulesModules.Graph> graphs = new ArrayList<>();
+    ObjectId revision = null;
+    for (int i = 0; i < key.projects.size(); i++) {
+      if (key.projects.get(i).equals(project)) {
+        revision = key.revisions.get(i);
+        continue;
+      }
+      RulesModules.Graph graph = read(key.projects.get(i), key.revisions.get(i));
+      if (graph != null) {
+        graphs.add(graph);
+      }
+    }
+
+    try (Repository git = gitMgr.openRepository(project);
+        FileFinder fileFinder = fileFinders.create(git, project)) {
+      if (revision != null) {
+        fileFinder.pointAt(revision);
+      }
+      RulesModules.Graph graph = rulesModules.load(fileFinder, RULES_FILE, script);
+      if (graph != null) {
+        graphs.add(graph);
+      }
+    } catch (IOException e) {
+      throw new RuleEvalException("Could not read the modules of " + project, e);
+    }
+    return bundle(graphs, project.get() + ":/" + RULES_FILE);
+  }
+
+  /**
+   * Returns the projects inheriting the rules of a project whose rules are in memory, i.e. which
+   * were evaluated recently. The projects of the persisted chains are not returned until they are
+   * evaluated again.
+   */
+  public Set<Project.NameKey> cachedChildren(Project.NameKey project) {
+    Set<Project.NameKey> children = new LinkedHashSet<>();
+    for (ChainKey key : chains.asMap().keySet()) {
+      int i = key.projects.indexOf(project);
+      if (i >= 0 && i < key.projects.size() - 1) {
+        // Chains end with the project itself, unless it has no refs/meta/config.
+        children.add(key.projects.get(key.projects.size() - 1));
+      }
+    }
+    return children;
+  }
+
+  /**
+   * Returns the projects whose rules apply to a project, with their refs/meta/config revisions, or
+   * null if the project does not exist.
+   *
+   * @param updated the project to use the given revision for, itself or one of its parents.
+   * @param revision if not null, the revision to use for the updated project.
+   */
+  @Nullable
+  private ChainKey chain(
+      Project.NameKey project, Project.NameKey updated, @Nullable ObjectId revision)
+      throws RuleEvalException {
+    ProjectState state;
+    try {
+      state = projectCache.checkedGet(project);
+    } catch (IOException e) {
+      throw new RuleEvalException("Cannot load " + project, e);
+    }
+    if (state == null) {
+      return null;
+    }
+
+    List<ProjectState> chain = new ArrayList<>();
+    if (config.inheritRules()) {
+      // From All-Projects to the project itself.
+      state.tree().forEach(p -> chain.add(0, p));
+    } else {
+      chain.add(state);
+    }
+
+    ImmutableList.Builder<Project.NameKey> projects = ImmutableList.builder();
+    ImmutableList.Builder<ObjectId> revisions = ImmutableList.builder();
+    for (ProjectState p : chain) {
+      ObjectId projectRevision = p.getConfig().getRevision();
+      if (revision != null && p.getNameKey().equals(updated)) {
+        projectRevision = revision;
+      }
+      if (projectRevision != null) {
+        // Projects without refs/meta/config have no rules.
+        projects.add(p.getNameKey());
+        revisions.add(projectRevision.copy());
+      }
+    }
+    return new ChainKey(projects.build(), revisions.build());
+  }
+
+  @Nullable
+  private InheritedRules combine(ChainKey key) throws RuleEvalException {
+    List<RulesModules.Graph> graphs = new ArrayList<>();
+    String name = null;
+    for (int i = 0; i < key.projects.size(); i++) {
+      Project.NameKey project = key.projects.get(i);
+      RulesModules.Graph graph = read(project, key.revisions.get(i));
+      if (graph != null) {
+        graphs.add(graph);
+        name = project.get() + ":/" + RULES_FILE;
+      }
+    }
+    return bundle(graphs, name);
+  }
+
+  /** Caches combined rules, and returns their id, or the zero id if there are none. */
+  private ObjectId store(@Nullable InheritedRules rules) {
+    if (rules == null) {
+      return ObjectId.zeroId();
+    }
+    scripts.put(rules.id(), rules);
+    return rules.id();
+  }
+
+  /** Returns a single script running the given files, or null if there are none. */
+  @VisibleForTesting
+  @Nullable
+  static InheritedRules bundle(List<RulesModules.Graph> graphs, String name) {
+    if (graphs.isEmpty()) {
+      return null;
+    }
+    if (graphs.size() == 1 && graphs.get(0).isStandalone()) {
+      return new InheritedRules(graphs.get(0).rootSource(), name);
+    }
+
+    StringBuilder combined = new StringBuilder(HEADER);
+    for (int i = 0; i < graphs.size(); i++) {
+      if (i > 0) {
+        combined.append(",\n");
+      }
+      appendFile(combined, graphs.get(i));
+    }
+    combined.append(FOOTER);
+    return new InheritedRules(
+        combined.toString(), name + (graphs.size() > 1 ? " (inherited)" : " (with modules)"));
+  }
+
+  /** Appends the function scope of a file, given its {@code require} function if it needs one. */
+  private static void appendFile(StringBuilder script, RulesModules.Graph graph) {
+    if (graph.isStandalone()) {
+      script.append(FILE_HEADER).append(graph.rootSource()).append(FILE_FOOTER).append("()");
+      return;
+    }
+
+    script.append(FILE_HEADER).append(graph.rootSource()).append(FILE_FOOTER);
+    script.append("(").append(LOADER).append("({\n");
+    boolean first = true;
+    for (Map.Entry<String, RulesModules.Module> e : graph.modules.entrySet()) {
+      if (e.getKey().equals(graph.root)) {
+        continue;
+      }
+      if (!first) {
+        script.append(",\n");
+      }
+      first = false;
+      quote(script, e.getKey()).append(": ");
+      script.append(MODULE_HEADER).append(e.getValue().source).append(MODULE_FOOTER);
+    }
+    script.append("}, {");
+    first = true;
+    for (Map.Entry<String, ImmutableMap<String, String>> e : graph.resolutions.entrySet()) {
+      if (!first) {
+        script.append(", ");
+      }
+      first = false;
+      quote(script, e.getKey()).append(": {");
+      boolean firstName = true;
+      for (Map.Entry<String, String> resolved : e.getValue().entrySet()) {
+        if (!firstName) {
+          script.append(", ");
+        }
+        firstName = false;
+        quote(script, resolved.getKey()).append(": ");
+        quote(script, resolved.getValue());
+      }
+      script.append("}");
+    }
+    script.append("}, ");
+    quote(script, graph.root).append("))");
+  }
+
+  /** Appends a string literal, escaped like in JSON. */
+  private static StringBuilder quote(StringBuilder script, String value) {
+    script.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        script.append('\\').append(c);
+      } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+        script.append(String.format("\\u%04x", (int) c));
+      } else {
+        script.append(c);
+      }
+    }
+    return script.append('"');
+  }
+
+  /**
+   * Returns rules.js and the modules it requires at a revision, or null if it does not exist or is
+   * empty.
+   */
+  @Nullable
+  private RulesModules.Graph read(Project.NameKey project, ObjectId revision)
+      throws RuleEvalException {
+    try (Repository git = gitMgr.openRepository(project);
+        FileFinder fileFinder = fileFinders.create(git, project)) {
+      fileFinder.pointAt(revision);
+      return rulesModules.load(fileFinder, RULES_FILE);
+    } catch (IOException e) {
+      throw new RuleEvalException("Could not read the rules.js of " + project, e);
+    }
+  }
+
+  static class ChainKey {
+    final ImmutableList<Project.NameKey> projects;
+    final ImmutableList<ObjectId> revisions;
+
+    ChainKey(ImmutableList<Project.NameKey> projects, ImmutableList<ObjectId> revisions) {
+      this.projects = projects;
+      this.revisions = revisions;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ChainKey)) {
+        return false;
+      }
+      ChainKey other = (ChainKey) o;
+      return projects.equals(other.projects) && revisions.equals(other.revisions);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projects, revisions);
+    }
+
+    /** Writes the name and the raw revision of each project. */
+    enum Serializer implements CacheSerializer<ChainKey> {
+      INSTANCE;
+
+      @Override
+      public byte[] serialize(ChainKey key) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+          out.writeInt(key.projects.size());
+          for (int i = 0; i < key.projects.size(); i++) {
+            out.writeUTF(key.projects.get(i).get());
+            key.revisions.get(i).copyRawTo(out);
+          }
+        } catch (IOException e) {
+          throw new IllegalStateException("Cannot serialize " + key.projects, e);
+        }
+        return bytes.toByteArray();
+      }
+
+      @Override
+      public ChainKey deserialize(byte[] in) {
+        try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(in))) {
+          int size = data.readInt();
+          ImmutableList.Builder<Project.NameKey> projects = ImmutableList.builder();
+          ImmutableList.Builder<ObjectId> revisions = ImmutableList.builder();
+          byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+          for (int i = 0; i < size; i++) {
+            projects.add(new Project.NameKey(data.readUTF()));
+            data.readFully(raw);
+            revisions.add(ObjectId.fromRaw(raw));
+          }
+          return new ChainKey(projects.build(), revisions.build());
+        } catch (IOException e) {
+          throw new IllegalArgumentException("Invalid chain of projects", e);
+        }
+      }
+    }
+  }
+
+  static class ChainWeigher implements Weigher<ChainKey, ObjectId> {
+    @Override
+    public int weigh(ChainKey key, ObjectId id) {
+      return 64 * key.projects.size() + 32;
+    }
+  }
+
+  static class RulesWeigher implements Weigher<ObjectId, InheritedRules> {
+    @Override
+    public int weigh(ObjectId id, InheritedRules rules) {
+      return 64 + rules.script().length();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.project.RuleEvalException;
+
+/**
+ * Prepares rules for their first evaluation, so that it does not pay for their compilation.
+ * Implemented by the engine evaluating rules.js.
+ */
+public interface RulesWarmUp {
+  /**
+   * Compiles the rules, and loads them in a runtime when the engine keeps runtimes around.
+   *
+   * @throws RuleEvalException if the rules are invalid, or could not be loaded.
+   */
+  void warmUp(Project.NameKey project, InheritedRules rules) throws RuleEvalException;
+}
@@ -0,0 +1,204 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.events.NewProjectCreatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Reads, compiles and validates rules.js in the background when refs/meta/config is updated, so
+ * that the first evaluation of the new rules does not pay for it on a request thread.
+ *
+ * <p>The rules are cached by revision: the new rules are only used once they are complete, and the
+ * evaluations use the previous rules until then. Warming up runs on its own queue, with threads of
+ * the lowest priority.
+ *
+ * <p>When the rules are inherited, the children of the updated project whose rules are in memory
+ * are warmed up too: they were evaluated recently, and are likely to be evaluated again.
+ */
+@Singleton
+public class RulesWarmer
+    implements GitReferenceUpdatedListener, NewProjectCreatedListener, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String QUEUE_NAME = "ScriptingRulesWarmUp";
+
+  /** Only installed in the server: the batch programs do not receive events. */
+  public static Module module() {
+    return new LifecycleModule() {
+      @Override
+      protected void configure() {
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(RulesWarmer.class);
+        DynamicSet.bind(binder(), NewProjectCreatedListener.class).to(RulesWarmer.class);
+        listener().to(RulesWarmer.class);
+      }
+    };
+  }
+
+  private final ProjectCache projectCache;
+  private final RulesResolver rulesResolver;
+  private final RulesWarmUp engine;
+  private final WorkQueue workQueue;
+  private final int threads;
+  private final boolean onStartup;
+  private volatile ScheduledExecutorService executor;
+
+  @Inject
+  RulesWarmer(
+      @GerritServerConfig Config cfg,
+      @PluginName String pluginName,
+      ProjectCache projectCache,
+      RulesResolver rulesResolver,
+      RulesWarmUp engine,
+      WorkQueue workQueue) {
+    this.projectCache = projectCache;
+    this.rulesResolver = rulesResolver;
+    this.engine = engine;
+    this.workQueue = workQueue;
+    this.threads = Math.max(1, cfg.getInt("plugin", pluginName, "warmUpThreads", 1));
+    this.onStartup = cfg.getBoolean("plugin", pluginName, "warmUpOnStartup", false);
+  }
+
+  @Override
+  public void start() {
+    executor = workQueue.createQueue(threads, QUEUE_NAME, Thread.MIN_PRIORITY, false);
+    if (onStartup) {
+      executor.submit(this::warmUpAll);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @Override
+  public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    if (!RefNames.REFS_CONFIG.equals(event.getRefName()) || event.isDelete()) {
+      return;
+    }
+    Project.NameKey project = new Project.NameKey(event.getProjectName());
+    ObjectId revision = ObjectId.fromString(event.getNewObjectId());
+    submit(() -> warmUpTree(project, revision));
+  }
+
+  /** New projects have no rules of their own, but may inherit the rules of their parent. */
+  @Override
+  public void onNewProjectCreated(NewProjectCreatedListener.Event event) {
+    Project.NameKey project = new Project.NameKey(event.getProjectName());
+    submit(() -> warmUp(project, project, null, new HashSet<>()));
+  }
+
+  private void submit(Runnable task) {
+    ScheduledExecutorService e = executor;
+    if (e != null) {
+      e.submit(task);
+    }
+  }
+
+  /**
+   * Warms the rules of an updated project up, and the rules of its children which are in memory,
+   * once per version of the rules.
+   */
+  private void warmUpTree(Project.NameKey project, ObjectId revision) {
+    Set<Project.NameKey> children = rulesResolver.cachedChildren(project);
+    Set<ObjectId> warm = new HashSet<>();
+    warmUp(project, project, revision, warm);
+    for (Project.NameKey child : children) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      warmUp(child, project, revision, warm);
+    }
+  }
+
+  /**
+   * Warms the rules of a project up, unless they are already warm.
+   *
+   * @param updated the project whose refs/meta/config was updated, itself or one of its parents.
+   * @param revision if not null, the new revision of refs/meta/config of the updated project, which
+   *     may not be known by the project cache yet.
+   * @param warm the ids of the rules already warmed up, which the rules are added to.
+   */
+  private void warmUp(
+      Project.NameKey project,
+      Project.NameKey updated,
+      @Nullable ObjectId revision,
+      Set<ObjectId> warm) {
+    InheritedRules rules;
+    try {
+      rules = rulesResolver.resolve(project, updated, revision);
+    } catch (RuleEvalException e) {
+      logger.atWarning().withCause(e).log("Cannot read the rules of %s", project);
+      return;
+    }
+    if (rules != null && warm.add(rules.id())) {
+      warmUp(project, rules);
+    }
+  }
+
+  private void warmUp(Project.NameKey project, InheritedRules rules) {
+    try {
+      engine.warmUp(project, rules);
+    } catch (RuleEvalException e) {
+      logger.atWarning().withCause(e).log("Invalid rules in %s", project);
+    }
+  }
+
+  /** Warms the rules of all the projects up, once per version of the rules. */
+  private void warmUpAll() {
+    Set<ObjectId> warm = new HashSet<>();
+    int count = 0;
+    for (Project.NameKey project : projectCache.all()) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      InheritedRules rules;
+      try {
+        rules = rulesResolver.resolve(project);
+      } catch (RuleEvalException e) {
+        logger.atWarning().withCause(e).log("Cannot read the rules of %s", project);
+        continue;
+      }
+      if (rules != null && warm.add(rules.id())) {
+        warmUp(project, rules);
+        count++;
+      }
+    }
+    logger.atInfo().log("Warmed up %d versions of the rules", count);
+  }
+}
@@ -0,0 +1,33 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.rhino;
+
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.inject.AbstractModule;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesDryRun;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesResolver;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesWarmUp;
+
+public class RhinoEngineModule extends AbstractModule {
+  @Override
+  protected void configure() {
+    DynamicSet.bind(binder(), RuleEngine.class).to(RhinoRuleEngine.class);
+    bind(RulesDryRun.class).to(RhinoRuleEngine.class);
+    bind(RulesWarmUp.class).to(RhinoRuleEngine.class);
+    install(RhinoRuntime.module());
+    install(RulesResolver.module());
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.rhino;
+
+import com.google.common.base.Strings;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.project.SubmitRuleOptions;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesEvaluator;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesMetrics;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.InheritedRules;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.JsEngineConfig;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesDryRun;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesResolver;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.js.RulesWarmUp;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Inject;
+import org.mozilla.javascript.RhinoException;
+
+/** Evaluates rules.js with Rhino. See {@link RhinoRuntime}. */
+class RhinoRuleEngine implements RuleEngine, RulesDryRun, RulesWarmUp {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String NAME = "rhino";
+
+  private final AccountCache accountCache;
+  private final JsEngineConfig config;
+  private final RulesEvaluator evaluator;
+  private final RulesMetrics metrics;
+  private final RhinoRuntime runtime;
+  private final RulesResolver rulesResolver;
+
+  @Inject
+  private RhinoRuleEngine(
+      AccountCache accountCache,
+      JsEngineConfig config,
+      RulesEvaluator evaluator,
+      RulesMetrics metrics,
+      RhinoRuntime runtime,
+      RulesResolver rulesResolver) {
+    this.accountCache = accountCache;
+    this.config = config;
+    this.evaluator = evaluator;
+    this.metrics = metrics;
+    this.runtime = runtime;
+    this.rulesResolver = rulesResolver;
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public Collection<SubmitRecord> evaluate(
+      ChangeData cd, Change change, SubmitRuleOptions opts, FileFinder fileFinder)
+      throws IOException, OrmException, RuleEvalException {
+    Project.NameKey project = change.getProject();
+    InheritedRules rules;
+    try (Timer2.Context ctx = metrics.startRead(NAME, project)) {
+      rules = rulesResolver.resolve(project);
+    }
+    if (rules == null) {
+      return null;
+    }
+    return evaluator.evaluate(
+        NAME,
+        project,
+        rules,
+        cd,
+        change,
+        () -> config.profileCallbacks(project),
+        context -> evaluateUncached(project, rules, context));
+  }
+
+  @Override
+  @Nullable
+  public AccessSet accessSet(Project.NameKey project, FileFinder fileFinder)
+      throws RuleEvalException {
+    InheritedRules rules = rulesResolver.resolve(project);
+    return rules != null ? rules.accessSet() : null;
+  }
+
+  /** Loads the fields of the changes which the rules read in bulk, before evaluating them. */
+  @Override
+  public Map<Change.Id, Collection<SubmitRecord>> evaluate(
+      Project.NameKey project,
+      Collection<ChangeData> changes,
+      SubmitRuleOptions opts,
+      FileFinder fileFinder)
+      throws IOException, OrmException, RuleEvalException {
+    InheritedRules rules;
+    try (Timer2.Context ctx = metrics.startRead(NAME, project)) {
+      rules = rulesResolver.resolve(project);
+    }
+    if (rules == null) {
+      return new LinkedHashMap<>();
+    }
+    rules.accessSet().prefetch(changes, accountCache);
+    return RuleEngine.super.evaluate(project, changes, opts, fileFinder);
+  }
+
+  @Override
+  public Collection<SubmitRecord> dryRun(
+      Project.NameKey project, InheritedRules rules, ChangeContext change)
+      throws RuleEvalException {
+    return evaluateUncached(project, rules, change);
+  }
+
+  /** Compiles the rules. Their top-level code only runs when they are evaluated. */
+  @Override
+  public void warmUp(Project.NameKey project, InheritedRules rules) throws RuleEvalException {
+    try {
+      runtime.compile(rules.id(), rules.script(), rules.name());
+    } catch (RhinoException e) {
+      throw new RuleEvalException("Invalid " + rules.name(), e);
+    }
+  }
+
+  private Collection<SubmitRecord> evaluateUncached(
+      Project.NameKey project, InheritedRules rules, ChangeContext change)
+      throws RuleEvalException {
+    long timeoutMs = config.timeoutMs(project);
+    try {
+      return runtime.evaluate(rules.id(), rules::script, rules.name(), change, timeoutMs);
+    } catch (RhinoRuntime.RulesTimeoutError e) {
+      return evaluator.timedOut(NAME, project, timeoutMs);
+    } catch (RhinoException e) {
+      logger.atWarning().withCause(e).log("Error evaluating the rules of %s", project);
+      if (isResourceExhaustion(e)) {
+        return RulesEvaluator.resourcesExhausted();
+      }
+      return RulesEvaluator.invalidRules();
+    } catch (IOException e) {
+      throw new RuleEvalException("Could not read rules.js", e);
+    }
+  }
+
+  private static boolean isResourceExhaustion(RhinoException e) {
+    return Strings.nullToEmpty(e.details()).contains("Exceeded maximum stack depth");
+  }
+}
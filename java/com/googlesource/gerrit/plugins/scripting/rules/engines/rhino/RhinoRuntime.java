@@ -0,0 +1,395 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.rhino;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRecord.Status;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.ThrowingSupplier;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.WrappedException;
+
+/**
+ * Evaluates the rules with Rhino, which runs in the JVM: the rules call the change API without
+ * crossing JNI, and no native library is needed.
+ *
+ * <p>The standard objects, {@code Requirement} and the change API live in a sealed scope shared by
+ * all the threads, and their prototypes are sealed or frozen. Each evaluation executes the compiled
+ * script in a new scope whose prototype is the shared scope, so evaluations cannot see each other's
+ * globals. Scripts are compiled once per blob id.
+ *
+ * <p>Scripts are parsed as ES6, which Rhino only partly supports: see the documentation of the
+ * {@code jsEngine} setting.
+ *
+ * <p>Scripts are interpreted rather than compiled to bytecode: the interpreter is the only mode in
+ * which Rhino can stop a script which overruns its deadline, and bound the depth of its stack.
+ */
+@Singleton
+class RhinoRuntime {
+  static final String SCRIPTS_CACHE = "rhino_scripts";
+
+  /** Number of instructions between two checks of the deadline. */
+  private static final int INSTRUCTION_THRESHOLD = 10000;
+
+  private static final int MAX_STACK_DEPTH = 1000;
+
+  private static final String DEADLINE = "deadline";
+
+  /** Same constructor as the V8 engine. */
+  private static final String REQUIREMENT =
+      "function Requirement(is_met, description) {\n"
+          + "  this.is_met = is_met;\n"
+          + "  this.description = description;\n"
+          + "}\n"
+          + "Object.freeze(Requirement);\n"
+          + "Object.freeze(Requirement.prototype);\n";
+
+  /** Same API as the V8 engine: rules run unchanged on both. */
+  private static final String CHANGE_PROTOTYPE =
+      "(function(host) {\n"
+          + "  function getter(name) {\n"
+          + "    var get = host[name];\n"
+          + "    return { get: function() { return get(); }, enumerable: true };\n"
+          + "  }\n"
+          + "  function Account(id) {\n"
+          + "    this.hasEmail = function(email) { return hasEmail(id, email); };\n"
+          + "  }\n"
+          + "  var hasEmail = host.hasEmail;\n"
+          + "  var findVotes = host.findVotes;\n"
+          + "  function Change() {}\n"
+          + "  Object.defineProperties(Change.prototype, {\n"
+          + "    subject: getter('subject'),\n"
+          + "    branch: getter('branch'),\n"
+          + "    private: getter('private'),\n"
+          + "    work_in_progress: getter('wip'),\n"
+          + "    wip: getter('wip'),\n"
+          + "    unresolved_comments_count: getter('unresolved_comments_count')\n"
+          + "  });\n"
+          + "  Change.prototype.author = host.author;\n"
+          + "  Change.prototype.committer = host.committer;\n"
+          + "  Change.prototype.findVotes = function() {\n"
+          + "    var raw = findVotes.apply(null, arguments);\n"
+          + "    var votes = [];\n"
+          + "    for (var i = 0; i < raw.length; i += 4) {\n"
+          + "      votes.push({\n"
+          + "        label: raw[i],\n"
+          + "        value: raw[i + 1],\n"
+          + "        patchset_id: raw[i + 2],\n"
+          + "        account: new Account(raw[i + 3])\n"
+          + "      });\n"
+          + "    }\n"
+          + "    return votes;\n"
+          + "  };\n"
+          // The prototypes are shared by all the threads.
+          + "  Object.getOwnPropertyNames(Change.prototype).forEach(function(name) {\n"
+          + "    var property = Object.getOwnPropertyDescriptor(Change.prototype, name);\n"
+          + "    Object.freeze(property.get || property.value);\n"
+          + "  });\n"
+          + "  [Change, Change.prototype, Account, Account.prototype].forEach(Object.freeze);\n"
+          + "  return function() { return new Change(); };\n"
+          + "})";
+
+  static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(SCRIPTS_CACHE, ObjectId.class, Script.class).maximumWeight(100);
+        bind(RhinoRuntime.class);
+      }
+    };
+  }
+
+  private final Cache<ObjectId, Script> scripts;
+  private final ContextFactory contextFactory = new RulesContextFactory();
+  private final ScriptableObject sharedScope;
+  private final Function newChange;
+
+  @Inject
+  RhinoRuntime(@Named(SCRIPTS_CACHE) Cache<ObjectId, Script> scripts) {
+    this.scripts = scripts;
+
+    Context cx = contextFactory.enterContext();
+    try {
+      sharedScope = cx.initSafeStandardObjects(null, true);
+      cx.evaluateString(sharedScope, REQUIREMENT, "requirement", 1, null);
+      Function installer =
+          (Function) cx.evaluateString(sharedScope, CHANGE_PROTOTYPE, "change-api", 1, null);
+      newChange =
+          (Function)
+              installer.call(cx, sharedScope, sharedScope, new Object[] {newHost(cx, sharedScope)});
+      sharedScope.sealObject();
+    } finally {
+      Context.exit();
+    }
+  }
+
+  /**
+   * Compiles a script ahead of its first evaluation, unless it is already compiled.
+   *
+   * @throws RhinoException if the script is invalid.
+   */
+  void compile(ObjectId scriptId, String source, String scriptName) {
+    if (scripts.getIfPresent(scriptId) != null) {
+      return;
+    }
+    Context cx = contextFactory.enterContext();
+    try {
+      scripts.put(scriptId.copy(), cx.compileString(source, scriptName, 1, null));
+    } finally {
+      Context.exit();
+    }
+  }
+
+  /**
+   * Evaluates the rules on a change.
+   *
+   * @param source reads the script, only called when it is not compiled yet. A null script means
+   *     that the file is empty.
+   * @return the records returned by the rules, or null if they did not return any.
+   * @throws RulesTimeoutError if the rules overran their deadline.
+   * @throws RhinoException if the rules are invalid or exceeded the depth of the stack.
+   */
+  @Nullable
+  Collection<SubmitRecord> evaluate(
+      ObjectId scriptId,
+      ThrowingSupplier<String, IOException> source,
+      String scriptName,
+      ChangeContext change,
+      long timeoutMs)
+      throws IOException {
+    Context cx = contextFactory.enterContext();
+    try {
+      Script script = scripts.getIfPresent(scriptId);
+      if (script == null) {
+        String content = source.get();
+        if (content == null) {
+          return null;
+        }
+        script = cx.compileString(content, scriptName, 1, null);
+        scripts.put(scriptId.copy(), script);
+      }
+
+      cx.putThreadLocal(DEADLINE, System.nanoTime() + MILLISECONDS.toNanos(timeoutMs));
+      cx.putThreadLocal(ChangeContext.class, change);
+
+      Scriptable scope = cx.newObject(sharedScope);
+      scope.setPrototype(sharedScope);
+      scope.setParentScope(null);
+      script.exec(cx, scope);
+
+      Object submitRule = ScriptableObject.getProperty(scope, "submit_rule");
+      if (!(submitRule instanceof Function)) {
+        throw new EvaluatorException("submit_rule is not a function");
+      }
+      NativeArray requirements = (NativeArray) cx.newArray(scope, 0);
+      Object jsChange = newChange.call(cx, scope, scope, new Object[0]);
+      ((Function) submitRule).call(cx, scope, scope, new Object[] {jsChange, requirements});
+
+      if (requirements.getLength() == 0) {
+        // The script did not add any requirements.
+        return null;
+      }
+
+      // We don't want to return records with zero requirements.
+      return parseResults(requirements)
+          .stream()
+          .filter(s -> !s.requirements.isEmpty())
+          .collect(Collectors.toList());
+    } finally {
+      Context.exit();
+    }
+  }
+
+  private static Collection<SubmitRecord> parseResults(NativeArray requirements) {
+    SubmitRecord okRequirements = new SubmitRecord();
+    okRequirements.status = Status.OK;
+    okRequirements.requirements = new ArrayList<>();
+
+    SubmitRecord notReadyRequirements = new SubmitRecord();
+    notReadyRequirements.status = Status.NOT_READY;
+    notReadyRequirements.requirements = new ArrayList<>();
+
+    for (Object o : requirements) {
+      if (!(o instanceof Scriptable)) {
+        throw new EvaluatorException("Requirements must be objects");
+      }
+      Scriptable jsRequirement = (Scriptable) o;
+      SubmitRequirement requirement =
+          SubmitRequirement.builder()
+              .setFallbackText(
+                  Context.toString(ScriptableObject.getProperty(jsRequirement, "description")))
+              .setType("rules_js")
+              .build();
+      if (Context.toBoolean(ScriptableObject.getProperty(jsRequirement, "is_met"))) {
+        okRequirements.requirements.add(requirement);
+      } else {
+        notReadyRequirements.requirements.add(requirement);
+      }
+    }
+    return ImmutableList.of(okRequirements, notReadyRequirements);
+  }
+
+  /** The Java callbacks of the change API. */
+  private static Scriptable newHost(Context cx, ScriptableObject scope) {
+    Scriptable host = cx.newObject(scope);
+    define(host, scope, "subject", (c, s, change, args) -> change.subject());
+    define(host, scope, "branch", (c, s, change, args) -> change.branch());
+    define(host, scope, "private", (c, s, change, args) -> change.isPrivate());
+    define(host, scope, "wip", (c, s, change, args) -> change.isWorkInProgress());
+    define(
+        host,
+        scope,
+        "unresolved_comments_count",
+        (c, s, change, args) -> change.unresolvedCommentsCount());
+    define(host, scope, "author", (c, s, change, args) -> person(c, s, change.author()));
+    define(host, scope, "committer", (c, s, change, args) -> person(c, s, change.committer()));
+    define(host, scope, "findVotes", RhinoRuntime::findVotes);
+    define(host, scope, "hasEmail", RhinoRuntime::hasEmail);
+    return host;
+  }
+
+  private static void define(
+      Scriptable host, ScriptableObject scope, String name, Callback callback) {
+    HostFunction function = new HostFunction(callback);
+    ScriptRuntime.setFunctionProtoAndParent(function, scope);
+    host.put(name, host, function);
+  }
+
+  private static Object findVotes(
+      Context cx, Scriptable scope, ChangeContext change, Object[] args) throws Exception {
+    String label = Context.toString(args.length >= 1 ? args[0] : Undefined.instance);
+    Integer value =
+        args.length >= 2 && !Undefined.isUndefined(args[1])
+            ? (int) Context.toNumber(args[1])
+            : null;
+
+    List<PatchSetApproval> votes = change.findVotes(label, value);
+    // Votes are returned as a flat array of (label, value, patch set, account) tuples.
+    Object[] flat = new Object[votes.size() * 4];
+    int i = 0;
+    for (PatchSetApproval approval : votes) {
+      flat[i++] = approval.getLabel();
+      flat[i++] = (int) approval.getValue();
+      flat[i++] = approval.getPatchSetId().patchSetId;
+      flat[i++] = approval.getAccountId().get();
+    }
+    return cx.newArray(scope, flat);
+  }
+
+  private static Object hasEmail(
+      Context cx, Scriptable scope, ChangeContext change, Object[] args) {
+    try {
+      Account.Id accountId = new Account.Id((int) Context.toNumber(args[0]));
+      return change.hasEmail(accountId, Context.toString(args[1]));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static Scriptable person(Context cx, Scriptable scope, PersonIdent person) {
+    Scriptable jsPerson = cx.newObject(scope);
+    jsPerson.put("email", jsPerson, person.getEmailAddress());
+    jsPerson.put("name", jsPerson, person.getName());
+    return jsPerson;
+  }
+
+  @FunctionalInterface
+  private interface Callback {
+    Object call(Context cx, Scriptable scope, ChangeContext change, Object[] args)
+        throws Exception;
+  }
+
+  /** Calls back the change bound to the current context. */
+  private static class HostFunction extends BaseFunction {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Callback callback;
+
+    HostFunction(Callback callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+      ChangeContext change = (ChangeContext) cx.getThreadLocal(ChangeContext.class);
+      if (change == null) {
+        throw new IllegalStateException("No change is being evaluated");
+      }
+      try {
+        return callback.call(cx, scope, change, args);
+      } catch (RhinoException | RulesTimeoutError e) {
+        throw e;
+      } catch (Exception e) {
+        throw new WrappedException(e);
+      }
+    }
+  }
+
+  /** Thrown when the rules overrun their deadline. JavaScript code cannot catch it. */
+  static class RulesTimeoutError extends Error {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static class RulesContextFactory extends ContextFactory {
+    @Override
+    protected Context makeContext() {
+      Context cx = super.makeContext();
+      cx.setLanguageVersion(Context.VERSION_ES6);
+      cx.setOptimizationLevel(-1);
+      cx.setMaximumInterpreterStackDepth(MAX_STACK_DEPTH);
+      cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+      return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+      Long deadline = (Long) cx.getThreadLocal(DEADLINE);
+      if (deadline != null && System.nanoTime() - deadline > 0) {
+        throw new RulesTimeoutError();
+      }
+    }
+  }
+}
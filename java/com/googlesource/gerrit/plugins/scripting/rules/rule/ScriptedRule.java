@@ -14,10 +14,21 @@
 
 package com.googlesource.gerrit.plugins.scripting.rules.rule;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRecord.Status;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.Timer2;
 import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.project.RuleEvalException;
 import com.google.gerrit.server.project.SubmitRuleEvaluator;
 import com.google.gerrit.server.project.SubmitRuleOptions;
@@ -26,46 +37,297 @@ import com.google.gerrit.server.rules.SubmitRule;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
 import com.googlesource.gerrit.plugins.scripting.rules.engines.RuleEngine;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.RulesMetrics;
 import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Repository;
 
-/** This SubmitRule runs the scripting engines it knows about. */
+/**
+ * This SubmitRule runs the scripting engines it knows about.
+ *
+ * <p>When several engines have rules for the project of a change, they evaluate it concurrently,
+ * each with its own {@link FileFinder}. Their records are returned in the order the engines were
+ * registered in.
+ */
 @Singleton
-public class ScriptedRule implements SubmitRule {
+public class ScriptedRule implements SubmitRule, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final AccountCache accountCache;
   private final GitRepositoryManager gitMgr;
   private final DynamicSet<RuleEngine> engines;
+  private final FileFinder.Factory fileFinders;
+  private final RulesMetrics metrics;
+  private final WorkQueue workQueue;
+  private final int engineThreads;
+  private final boolean stopOnRuleError;
+  private volatile ScheduledExecutorService executor;
 
   @Inject
-  private ScriptedRule(GitRepositoryManager gitMgr, DynamicSet<RuleEngine> engines) {
+  private ScriptedRule(
+      AccountCache accountCache,
+      GitRepositoryManager gitMgr,
+      DynamicSet<RuleEngine> engines,
+      FileFinder.Factory fileFinders,
+      RulesMetrics metrics,
+      WorkQueue workQueue,
+      @GerritServerConfig Config cfg,
+      @PluginName String pluginName) {
+    this.accountCache = accountCache;
     this.gitMgr = gitMgr;
     this.engines = engines;
+    this.fileFinders = fileFinders;
+    this.metrics = metrics;
+    this.workQueue = workQueue;
+    this.engineThreads =
+        Math.max(
+            1,
+            cfg.getInt(
+                "plugin",
+                pluginName,
+                "engineThreads",
+                Runtime.getRuntime().availableProcessors()));
+    this.stopOnRuleError = cfg.getBoolean("plugin", pluginName, "stopOnRuleError", false);
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
   }
 
   @Override
   public Collection<SubmitRecord> evaluate(ChangeData cd, SubmitRuleOptions options) {
+    List<RuleEngine> ruleEngines = ImmutableList.copyOf(engines);
     try (Repository git = gitMgr.openRepository(cd.project());
-        FileFinder fileFinder = new FileFinder(git)) {
+        FileFinder fileFinder = fileFinders.create(git, cd.project())) {
 
       Change change = cd.change();
 
-      return StreamSupport.stream(engines.spliterator(), false)
+      if (ruleEngines.size() > 1) {
+        // Only the engines with rules for the project are worth a thread.
+        Map<RuleEngine, AccessSet> withRules =
+            findEnginesWithRules(ruleEngines, cd.project(), fileFinder);
+        if (withRules.size() > 1) {
+          return evaluateConcurrently(withRules, git, cd, change, options, fileFinder);
+        }
+        ruleEngines = ImmutableList.copyOf(withRules.keySet());
+      }
+      return ruleEngines
+          .stream()
           .map(new ScriptEvaluator(cd, change, options, fileFinder))
           .filter(Objects::nonNull)
           .flatMap(Collection::stream)
           .collect(Collectors.toList());
     } catch (OrmException | IOException e) {
-      e.printStackTrace();
+      logger.atSevere().withCause(e).log("Cannot evaluate the rules of change %s", cd.getId());
       return SubmitRuleEvaluator.createRuleError("Error in ScriptedRule");
     }
   }
 
+  /**
+   * Returns the engines which have rules for a project, in the order they were registered in,
+   * with the fields of the changes their rules read.
+   */
+  private static Map<RuleEngine, AccessSet> findEnginesWithRules(
+      List<RuleEngine> ruleEngines, Project.NameKey project, FileFinder fileFinder) {
+    Map<RuleEngine, AccessSet> withRules = new LinkedHashMap<>();
+    for (RuleEngine ruleEngine : ruleEngines) {
+      AccessSet accessSet;
+      try {
+        accessSet = ruleEngine.accessSet(project, fileFinder);
+      } catch (IOException | OrmException | RuleEvalException e) {
+        // The evaluation of the engine reports the error.
+        accessSet = AccessSet.ALL;
+      }
+      if (accessSet != null) {
+        withRules.put(ruleEngine, accessSet);
+      }
+    }
+    return withRules;
+  }
+
+  /**
+   * Runs the first engine in the calling thread, and the other ones in the executor. The
+   * repository is shared by the engines, but each one reads it with its own FileFinder.
+   *
+   * <p>The short-circuit of {@code stopOnRuleError} is one-way: a rule error returned by the first
+   * engine, or by any other one while the first engine completes, drops the records of the engines
+   * which did not complete yet, but the first engine always runs to completion, even when another
+   * engine already returned a rule error.
+   */
+  private Collection<SubmitRecord> evaluateConcurrently(
+      Map<RuleEngine, AccessSet> withRules,
+      Repository git,
+      ChangeData cd,
+      Change change,
+      SubmitRuleOptions options,
+      FileFinder fileFinder)
+      throws OrmException, IOException {
+    // ChangeData is not thread-safe: load what the engines read before they share it.
+    withRules
+        .values()
+        .stream()
+        .reduce(AccessSet::union)
+        .get()
+        .prefetch(ImmutableList.of(cd), accountCache);
+
+    List<RuleEngine> ruleEngines = ImmutableList.copyOf(withRules.keySet());
+    Project.NameKey project = cd.project();
+    AtomicBoolean stopped = new AtomicBoolean();
+    List<Collection<SubmitRecord>> results = new ArrayList<>(ruleEngines.size());
+    List<Future<Collection<SubmitRecord>>> futures = new ArrayList<>(ruleEngines.size() - 1);
+    CompletionService<Collection<SubmitRecord>> completion =
+        new ExecutorCompletionService<>(executor());
+    for (RuleEngine ruleEngine : ruleEngines.subList(1, ruleEngines.size())) {
+      futures.add(
+          completion.submit(
+              () -> {
+                try (FileFinder engineFileFinder = fileFinders.create(git, project)) {
+                  if (stopped.get()) {
+                    // The result would be dropped.
+                    return null;
+                  }
+                  return new ScriptEvaluator(cd, change, options, engineFileFinder)
+                      .apply(ruleEngine);
+                }
+              }));
+      results.add(null);
+    }
+
+    try {
+      Collection<SubmitRecord> first =
+          new ScriptEvaluator(cd, change, options, fileFinder).apply(ruleEngines.get(0));
+      results.add(0, first);
+      if (stopOnRuleError && isRuleError(first)) {
+        return merge(results);
+      }
+
+      for (int pending = futures.size(); pending > 0; pending--) {
+        Future<Collection<SubmitRecord>> done = completion.take();
+        Collection<SubmitRecord> records = getResult(done);
+        results.set(futures.indexOf(done) + 1, records);
+        if (stopOnRuleError && isRuleError(records)) {
+          break;
+        }
+      }
+      return merge(results);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return SubmitRuleEvaluator.createRuleError("Interrupted while evaluating the rules");
+    } finally {
+      // Once an engine returned a rule error, the result of the other ones does not matter. The
+      // engines are not interrupted, which could close the pack files they read: the ones which
+      // did not start their evaluation yet skip it.
+      stopped.set(true);
+      futures.forEach(f -> f.cancel(false));
+    }
+  }
+
+  private static Collection<SubmitRecord> getResult(Future<Collection<SubmitRecord>> future)
+      throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      logger.atSevere().withCause(e.getCause()).log("Error evaluating the rules");
+      return SubmitRuleEvaluator.createRuleError("Error evaluating the rules");
+    }
+  }
+
+  private static boolean isRuleError(@Nullable Collection<SubmitRecord> records) {
+    return records != null && records.stream().anyMatch(r -> r.status == Status.RULE_ERROR);
+  }
+
+  private static List<SubmitRecord> merge(List<Collection<SubmitRecord>> results) {
+    return results
+        .stream()
+        .filter(Objects::nonNull)
+        .flatMap(Collection::stream)
+        .collect(Collectors.toList());
+  }
+
+  /** The executor is only created when several engines have rules for the same project. */
+  private ScheduledExecutorService executor() {
+    ScheduledExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = workQueue.createQueue(engineThreads, "ScriptingRulesEngines");
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Evaluates several changes of one project, sharing the repository and the rules between them.
+   *
+   * @return the records of each change, in the order of {@code changes}.
+   */
+  public Map<Change.Id, Collection<SubmitRecord>> evaluate(
+      Project.NameKey project, Collection<ChangeData> changes, SubmitRuleOptions options) {
+    Map<Change.Id, List<SubmitRecord>> results = new LinkedHashMap<>();
+    for (ChangeData cd : changes) {
+      results.put(cd.getId(), new ArrayList<>());
+    }
+
+    try (Repository git = gitMgr.openRepository(project);
+        FileFinder fileFinder = fileFinders.create(git, project)) {
+      for (RuleEngine ruleEngine : engines) {
+        Map<Change.Id, Collection<SubmitRecord>> engineResults;
+        try {
+          engineResults = ruleEngine.evaluate(project, changes, options, fileFinder);
+        } catch (IOException | OrmException | RuleEvalException e) {
+          logger.atWarning().withCause(e).log(
+              "Error evaluating the %s rules of %s", ruleEngine.name(), project);
+          engineResults = new LinkedHashMap<>();
+          for (ChangeData cd : changes) {
+            engineResults.put(
+                cd.getId(), SubmitRuleEvaluator.createRuleError("Error evaluating the rules"));
+          }
+        }
+        for (Map.Entry<Change.Id, Collection<SubmitRecord>> e : engineResults.entrySet()) {
+          if (isRuleError(e.getValue())) {
+            metrics.ruleError(ruleEngine.name(), project);
+          }
+          results.get(e.getKey()).addAll(e.getValue());
+        }
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Cannot evaluate the rules of %s", project);
+      Map<Change.Id, Collection<SubmitRecord>> errors = new LinkedHashMap<>();
+      for (ChangeData cd : changes) {
+        errors.put(cd.getId(), SubmitRuleEvaluator.createRuleError("Error in ScriptedRule"));
+      }
+      return errors;
+    }
+    return new LinkedHashMap<>(results);
+  }
+
   /** Helper class to evaluate a scripting engine and catching its potential exceptions. */
   private class ScriptEvaluator implements Function<RuleEngine, Collection<SubmitRecord>> {
     private final ChangeData cd;
@@ -84,11 +346,18 @@ public class ScriptedRule implements SubmitRule {
 
     @Override
     public Collection<SubmitRecord> apply(RuleEngine ruleEngine) {
-      try {
-        return ruleEngine.evaluate(cd, change, options, fileFinder);
+      Collection<SubmitRecord> records;
+      try (Timer2.Context ctx = metrics.startEvaluation(ruleEngine.name(), change.getProject())) {
+        records = ruleEngine.evaluate(cd, change, options, fileFinder);
       } catch (IOException | OrmException | RuleEvalException e) {
-        return SubmitRuleEvaluator.createRuleError("Error evaluating the rules");
+        logger.atWarning().withCause(e).log(
+            "Error evaluating the %s rules of change %s", ruleEngine.name(), change.getId());
+        records = SubmitRuleEvaluator.createRuleError("Error evaluating the rules");
+      }
+      if (isRuleError(records)) {
+        metrics.ruleError(ruleEngine.name(), change.getProject());
       }
+      return records;
     }
   }
 }
@@ -0,0 +1,148 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Shared cache of the files read by {@link FileFinder}, keyed by project, commit and path.
+ *
+ * <p>Commits are immutable, so entries never need to be invalidated: when refs/meta/config is
+ * updated, the new commit simply leads to new keys. Files which do not exist are cached too, so
+ * that projects without rules cost a single ref lookup.
+ *
+ * <p>Hit and miss counts are visible with the {@code show-caches} command, like the other caches.
+ */
+@Singleton
+public class FileCache {
+  static final String CACHE_NAME = "files";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, new TypeLiteral<Optional<CachedFile>>() {})
+            .maximumWeight(4 << 20)
+            .weigher(FileWeigher.class);
+        bind(FileCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, Optional<CachedFile>> cache;
+
+  @Inject
+  FileCache(@Named(CACHE_NAME) Cache<Key, Optional<CachedFile>> cache) {
+    this.cache = cache;
+  }
+
+  Optional<CachedFile> get(Key key, Callable<Optional<CachedFile>> loader) throws IOException {
+    try {
+      return cache.get(key, loader);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Cannot load " + key, e.getCause());
+    }
+  }
+
+  /** Returns the cached lookup of a file, or null if the file was not looked up yet. */
+  @Nullable
+  Optional<CachedFile> getIfPresent(Key key) {
+    return cache.getIfPresent(key);
+  }
+
+  void put(Key key, Optional<CachedFile> file) {
+    cache.put(key, file);
+  }
+
+  /** Returns the hit and miss counts of the cache. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  static class Key {
+    final Project.NameKey project;
+    final ObjectId revision;
+    final String path;
+
+    Key(Project.NameKey project, ObjectId revision, String path) {
+      this.project = project;
+      this.revision = revision.copy();
+      this.path = path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return project.equals(other.project)
+          && revision.equals(other.revision)
+          && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, revision, path);
+    }
+
+    @Override
+    public String toString() {
+      return project.get() + ":" + revision.name() + ":" + path;
+    }
+  }
+
+  /** A file found in a commit. */
+  static class CachedFile {
+    final ObjectId id;
+    /** The content of the file, empty if it has none, or null if it was not read yet. */
+    @Nullable final String content;
+
+    CachedFile(ObjectId id, @Nullable String content) {
+      this.id = id.copy();
+      this.content = content;
+    }
+  }
+
+  static class FileWeigher implements Weigher<Key, Optional<CachedFile>> {
+    @Override
+    public int weigh(Key key, Optional<CachedFile> value) {
+      int size = 64 + 2 * (key.project.get().length() + key.path.length());
+      if (value.isPresent() && value.get().content != null) {
+        size += 2 * value.get().content.length();
+      }
+      return size;
+    }
+  }
+}
@@ -14,35 +14,107 @@
 
 package com.googlesource.gerrit.plugins.scripting.rules.utils;
 
+import com.google.common.base.Strings;
 import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.reviewdb.client.RevId;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileCache.CachedFile;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.eclipse.jgit.util.RawParseUtils;
 
 /**
  * Utility class to load several files from a repository, without opening it multiple times. See
  * {@link ThrowingSupplierTest} for examples.
  *
+ * <p>When given a {@link FileCache}, the files are looked up in the cache first: once a file was
+ * read at a given revision, pointing at the revision and reading the file again only costs a ref
+ * lookup. Finding a file only caches its id: its blob is read by the first call reading the file.
+ *
  * <p>This class is not thread-safe.
  */
 public class FileFinder implements AutoCloseable {
+  /** Default maximum size of the blobs read in memory. */
+  public static final int DEFAULT_MAX_BLOB_SIZE = 1 << 20;
+
+  /** Creates the file finders of the plugin, with the configured maximum blob size. */
+  @Singleton
+  public static class Factory {
+    private final FileCache cache;
+    private final int maxBlobSize;
+
+    @Inject
+    Factory(FileCache cache, @GerritServerConfig Config cfg, @PluginName String pluginName) {
+      this.cache = cache;
+      this.maxBlobSize =
+          (int)
+              Math.min(
+                  Integer.MAX_VALUE,
+                  Math.max(
+                      1,
+                      cfg.getLong(
+                          "plugin", pluginName, "maxFileSize", DEFAULT_MAX_BLOB_SIZE)));
+    }
+
+    public FileFinder create(Repository git, Project.NameKey project) {
+      return new FileFinder(git, project, cache, maxBlobSize);
+    }
+  }
+
+  private ObjectId revisionId;
   private RevCommit revision;
   private final ObjectReader reader;
   private final RevWalk walk;
   private final Repository git;
+  @Nullable private final Project.NameKey project;
+  @Nullable private final FileCache cache;
+  private final int maxBlobSize;
 
   public FileFinder(Repository git) {
+    this(git, null, null);
+  }
+
+  public FileFinder(Repository git, @Nullable Project.NameKey project, @Nullable FileCache cache) {
+    this(git, project, cache, DEFAULT_MAX_BLOB_SIZE);
+  }
+
+  /**
+   * @param maxBlobSize size in bytes of the largest blob read in memory. Larger blobs can only be
+   *     read with {@link #openBlob(ObjectId)}.
+   */
+  public FileFinder(
+      Repository git,
+      @Nullable Project.NameKey project,
+      @Nullable FileCache cache,
+      int maxBlobSize) {
     this.git = git;
+    this.project = project;
+    this.cache = project != null ? cache : null;
+    this.maxBlobSize = maxBlobSize;
 
     walk = new RevWalk(git);
     reader = walk.getObjectReader();
@@ -50,21 +122,86 @@ public class FileFinder implements AutoCloseable {
 
   @Override
   public void close() {
+    this.revisionId = null;
     this.revision = null;
     walk.close();
     reader.close();
   }
 
-  /** Returns the content of a file, at the current revision.e. */
+  /** Returns the content of a file, at the current revision. */
   @Nullable
   public String readFile(String fileName) throws IOException {
+    if (cache != null) {
+      Optional<CachedFile> file = lookup(fileName);
+      return file.isPresent() ? content(fileName, file.get()) : null;
+    }
+
     ObjectId objectId = findFile(fileName);
     if (objectId == null) {
       return null;
     }
+    return readBlob(objectId);
+  }
+
+  /**
+   * Returns the content of several files at the current revision, resolving them with a single
+   * tree walk. Files which do not exist or are empty are omitted.
+   */
+  public Map<String, String> readFiles(Collection<String> fileNames) throws IOException {
+    Map<String, String> contents = new HashMap<>();
+    if (revisionId == null) {
+      return contents;
+    }
 
+    List<String> missing = new ArrayList<>();
+    for (String fileName : fileNames) {
+      Optional<CachedFile> cached = cachedLookup(fileName);
+      if (cached == null) {
+        missing.add(fileName);
+      } else if (cached.isPresent()) {
+        String content = content(fileName, cached.get());
+        if (content != null) {
+          contents.put(fileName, content);
+        }
+      }
+    }
+    if (missing.isEmpty()) {
+      return contents;
+    }
+
+    Map<String, ObjectId> ids = walkTo(missing);
+    for (String fileName : missing) {
+      ObjectId id = ids.get(fileName);
+      String content = id != null ? readBlob(id) : null;
+      if (content != null) {
+        contents.put(fileName, content);
+      }
+      if (cache != null) {
+        cache.put(
+            new FileCache.Key(project, revisionId, fileName),
+            id != null
+                ? Optional.of(new CachedFile(id, Strings.nullToEmpty(content)))
+                : Optional.empty());
+      }
+    }
+    return contents;
+  }
+
+  /**
+   * Returns the content of a blob, typically found by {@link #findFile(String)}.
+   *
+   * @throws IOException if the blob is larger than the maximum size.
+   */
+  @Nullable
+  public String readBlob(ObjectId objectId) throws IOException {
     ObjectLoader obj = reader.open(objectId, Constants.OBJ_BLOB);
-    byte[] raw = obj.getCachedBytes(Integer.MAX_VALUE);
+    if (obj.getSize() > maxBlobSize) {
+      throw new IOException(
+          String.format(
+              "Blob %s is larger than %d bytes (%d bytes)",
+              objectId.name(), maxBlobSize, obj.getSize()));
+    }
+    byte[] raw = obj.getCachedBytes(maxBlobSize);
 
     if (raw.length == 0) {
       return null;
@@ -72,13 +209,82 @@ public class FileFinder implements AutoCloseable {
     return RawParseUtils.decode(raw);
   }
 
+  /** Opens a blob of any size, to be read as a stream. The caller must close the stream. */
+  public ObjectStream openBlob(ObjectId objectId) throws IOException {
+    return reader.open(objectId, Constants.OBJ_BLOB).openStream();
+  }
+
   /** Returns the object id for a given filename, at the current revision. */
   @Nullable
   public ObjectId findFile(String fileName) throws IOException {
-    if (revision == null) {
+    if (revisionId == null) {
       return null;
     }
 
+    if (cache != null) {
+      return lookup(fileName).map(f -> f.id).orElse(null);
+    }
+    return walkTo(fileName);
+  }
+
+  /**
+   * Returns the object ids of several files at the current revision, resolving them with a single
+   * tree walk. Files which do not exist are omitted. The blobs are not read.
+   */
+  public Map<String, ObjectId> findFiles(Collection<String> fileNames) throws IOException {
+    Map<String, ObjectId> ids = new HashMap<>();
+    if (revisionId == null) {
+      return ids;
+    }
+
+    List<String> missing = new ArrayList<>();
+    for (String fileName : fileNames) {
+      Optional<CachedFile> cached = cachedLookup(fileName);
+      if (cached == null) {
+        missing.add(fileName);
+      } else if (cached.isPresent()) {
+        ids.put(fileName, cached.get().id);
+      }
+    }
+    if (!missing.isEmpty()) {
+      ids.putAll(walkTo(missing));
+    }
+    return ids;
+  }
+
+  private Optional<CachedFile> lookup(String fileName) throws IOException {
+    if (revisionId == null) {
+      return Optional.empty();
+    }
+
+    return cache.get(
+        new FileCache.Key(project, revisionId, fileName),
+        () -> {
+          // The blob is only read if the content of the file is needed.
+          ObjectId id = walkTo(fileName);
+          return id != null ? Optional.of(new CachedFile(id, null)) : Optional.empty();
+        });
+  }
+
+  /** Returns the content of a cached file, reading its blob if it was not read yet. */
+  @Nullable
+  private String content(String fileName, CachedFile file) throws IOException {
+    if (file.content != null) {
+      return Strings.emptyToNull(file.content);
+    }
+    String content = readBlob(file.id);
+    cache.put(
+        new FileCache.Key(project, revisionId, fileName),
+        Optional.of(new CachedFile(file.id, Strings.nullToEmpty(content))));
+    return content;
+  }
+
+  @Nullable
+  private ObjectId walkTo(String fileName) throws IOException {
+    if (revision == null) {
+      revision = walk.parseCommit(revisionId);
+    }
+
     try (TreeWalk tw = TreeWalk.forPath(reader, fileName, revision.getTree())) {
       if (tw != null) {
         return tw.getObjectId(0);
@@ -87,6 +293,35 @@ public class FileFinder implements AutoCloseable {
     return null;
   }
 
+  /** Returns the cached lookup of a file, or null if it must be looked up in the tree. */
+  @Nullable
+  private Optional<CachedFile> cachedLookup(String fileName) {
+    if (cache == null) {
+      return null;
+    }
+    return cache.getIfPresent(new FileCache.Key(project, revisionId, fileName));
+  }
+
+  private Map<String, ObjectId> walkTo(Collection<String> fileNames) throws IOException {
+    if (revision == null) {
+      revision = walk.parseCommit(revisionId);
+    }
+
+    Set<String> wanted = new HashSet<>(fileNames);
+    Map<String, ObjectId> ids = new HashMap<>();
+    try (TreeWalk tw = new TreeWalk(reader)) {
+      tw.addTree(revision.getTree());
+      tw.setRecursive(true);
+      tw.setFilter(PathFilterGroup.createFromStrings(wanted));
+      while (tw.next() && ids.size() < wanted.size()) {
+        if (wanted.contains(tw.getPathString())) {
+          ids.put(tw.getPathString(), tw.getObjectId(0));
+        }
+      }
+    }
+    return ids;
+  }
+
   /** Places the pointer at refs/head/master's head. */
   public boolean pointAtMaster() {
     return pointAt(RefNames.fullName("master"));
@@ -97,24 +332,35 @@ public class FileFinder implements AutoCloseable {
     return pointAt(RefNames.REFS_CONFIG);
   }
 
-  /** Places the pointer at the specified's ref head. */
+  /**
+   * Places the pointer at the specified's ref head. The commit itself is only parsed when a file
+   * must be read from it.
+   */
   public boolean pointAt(String refName) {
+    revisionId = null;
     revision = null;
 
     try {
       Ref ref = git.getRefDatabase().exactRef(refName);
-      if (ref == null) {
+      if (ref == null || ref.getObjectId() == null) {
         return false;
       }
 
-      revision = walk.parseCommit(ref.getObjectId());
+      revisionId = ref.getObjectId();
     } catch (IOException ignore) {
     }
 
-    return revision != null;
+    return revisionId != null;
+  }
+
+  /** Places the pointer at a known commit, e.g. the revision of refs/meta/config. */
+  public void pointAt(ObjectId commitId) {
+    revisionId = commitId.copy();
+    revision = null;
   }
 
   private boolean pointAt(RevId revId) {
+    revisionId = null;
     revision = null;
 
     ObjectId id = ObjectId.fromString(revId.get());
@@ -124,6 +370,7 @@ public class FileFinder implements AutoCloseable {
 
     try {
       revision = walk.parseCommit(id);
+      revisionId = revision;
     } catch (IOException ignore) {
     }
     return revision != null;
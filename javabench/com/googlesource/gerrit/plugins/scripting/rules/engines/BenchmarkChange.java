@@ -0,0 +1,89 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.query.change.ChangeData;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * A change whose data is in memory, so that benchmarks need neither a database nor a repository.
+ * Only the votes go through the real indexing of {@link ChangeContext}.
+ */
+public class BenchmarkChange extends ChangeContext {
+  private static final String[] LABELS = {"Code-Review", "Verified", "Library-Compliance"};
+  private static final PersonIdent AUTHOR = new PersonIdent("Author", "author@example.com");
+
+  /** Returns a change whose current patch set has the given number of votes. */
+  public static ChangeData changeWithVotes(int votes) {
+    ChangeData cd =
+        ChangeData.createForTest(new Project.NameKey("bench"), new Change.Id(1), 1);
+    PatchSet.Id psId = new PatchSet.Id(cd.getId(), 1);
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    List<PatchSetApproval> approvals = new ArrayList<>(votes);
+    for (int i = 0; i < votes; i++) {
+      approvals.add(
+          new PatchSetApproval(
+              new PatchSetApproval.Key(
+                  psId, new Account.Id(1000 + i), new LabelId(LABELS[i % LABELS.length])),
+              (short) (i % 5 - 2),
+              now));
+    }
+    cd.currentApprovals(approvals);
+    return cd;
+  }
+
+  public BenchmarkChange(ChangeData cd) {
+    super(cd, cd.change(), null);
+  }
+
+  @Override
+  public String subject() {
+    return "Benchmark change";
+  }
+
+  @Override
+  public String branch() {
+    return "refs/changes/01/1/1";
+  }
+
+  @Override
+  public Integer unresolvedCommentsCount() {
+    return 0;
+  }
+
+  @Override
+  public PersonIdent author() {
+    return AUTHOR;
+  }
+
+  @Override
+  public PersonIdent committer() {
+    return AUTHOR;
+  }
+
+  @Override
+  public boolean hasEmail(Account.Id accountId, String email) {
+    return email.equalsIgnoreCase("user" + accountId.get() + "@example.com");
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+/** Rules evaluated by the benchmarks of the JavaScript engines. */
+public class BenchmarkRules {
+  private static final String TRIVIAL_RULES =
+      "function submit_rule(change, requirements) {\n"
+          + "  requirements.push({description: 'Always met', is_met: true});\n"
+          + "}\n";
+
+  private static final String HEAVY_RULES =
+      "var LABELS = ['Code-Review', 'Verified', 'Library-Compliance'];\n"
+          + "function submit_rule(change, requirements) {\n"
+          + "  for (var i = 0; i < LABELS.length; i++) {\n"
+          + "    var approvals = change.findVotes(LABELS[i], 2)"
+          + ".concat(change.findVotes(LABELS[i], 1));\n"
+          + "    var vetoes = change.findVotes(LABELS[i], -2);\n"
+          + "    var trusted = approvals.filter(function(vote) {\n"
+          + "      return vote.account.hasEmail('user1000@example.com');\n"
+          + "    });\n"
+          + "    requirements.push({\n"
+          + "      description: LABELS[i] + ' approved by a trusted user',\n"
+          + "      is_met: trusted.length > 0 && vetoes.length == 0\n"
+          + "    });\n"
+          + "  }\n"
+          + "  requirements.push({description: 'Ready', is_met: !change.wip && !change.private});\n"
+          + "  requirements.push({\n"
+          + "    description: 'Committed by the author',\n"
+          + "    is_met: change.subject.length > 0"
+          + " && change.author().email == change.committer().email\n"
+          + "  });\n"
+          + "}\n";
+
+  /** Returns the "trivial" or the "heavy" rules. */
+  public static String get(String name) {
+    return name.equals("heavy") ? HEAVY_RULES : TRIVIAL_RULES;
+  }
+
+  private BenchmarkRules() {}
+}
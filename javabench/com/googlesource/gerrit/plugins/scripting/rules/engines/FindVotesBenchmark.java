@@ -0,0 +1,65 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Searches the votes of changes with many approvals. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class FindVotesBenchmark {
+  @Param({"10", "100", "1000"})
+  public int votes;
+
+  private ChangeData cd;
+  private ChangeContext indexed;
+
+  @Setup
+  public void setUp() throws OrmException {
+    cd = BenchmarkChange.changeWithVotes(votes);
+    indexed = new BenchmarkChange(cd);
+    indexed.findVotes("Code-Review", null);
+  }
+
+  /** The first search of an evaluation, which indexes the votes. */
+  @Benchmark
+  public List<PatchSetApproval> firstSearch() throws OrmException {
+    return new BenchmarkChange(cd).findVotes("code-review", 2);
+  }
+
+  /** The following searches of the same evaluation. */
+  @Benchmark
+  public void indexedSearches(Blackhole bh) throws OrmException {
+    bh.consume(indexed.findVotes("Code-Review", 2));
+    bh.consume(indexed.findVotes("Verified", null));
+    bh.consume(indexed.findVotes("Library-Compliance", -2));
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.server.project.RuleEvalException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Evaluates rules.js with runtimes leased from the pool. The variants with several threads show
+ * how the evaluations scale with the number of concurrent callers.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class JsEvaluationBenchmark {
+  @Benchmark
+  @Threads(1)
+  public Collection<SubmitRecord> evaluate1Thread(JsRulesState state) throws RuleEvalException {
+    return state.evaluate();
+  }
+
+  @Benchmark
+  @Threads(2)
+  public Collection<SubmitRecord> evaluate2Threads(JsRulesState state) throws RuleEvalException {
+    return state.evaluate();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Collection<SubmitRecord> evaluate4Threads(JsRulesState state) throws RuleEvalException {
+    return state.evaluate();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Collection<SubmitRecord> evaluateMaxThreads(JsRulesState state)
+      throws RuleEvalException {
+    return state.evaluate();
+  }
+}
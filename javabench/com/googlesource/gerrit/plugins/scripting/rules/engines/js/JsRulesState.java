@@ -0,0 +1,83 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.project.RuleEvalException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.BenchmarkChange;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.BenchmarkRules;
+import java.util.Collection;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A runtime pool shared by the benchmark threads, evaluating the same rules.js. Evaluations go
+ * through the pool and the change API like in the engine, without the result cache and the
+ * watchdog.
+ */
+@State(Scope.Benchmark)
+public class JsRulesState {
+  @Param({"trivial", "heavy"})
+  public String rules;
+
+  @Param({"100"})
+  public int votes;
+
+  private JsRuntimePool pool;
+  private String script;
+  private ObjectId scriptId;
+  private ChangeData cd;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    script = BenchmarkRules.get(rules);
+    try (ObjectInserter.Formatter f = new ObjectInserter.Formatter()) {
+      scriptId = f.idFor(Constants.OBJ_BLOB, script.getBytes(UTF_8));
+    }
+    pool =
+        new JsRuntimePool(
+            new JsEngineConfig(new Config(), null, "scripted-rules"),
+            new JsMetrics(new DisabledMetricMaker()),
+            new DisabledMetricMaker(),
+            null);
+    cd = BenchmarkChange.changeWithVotes(votes);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pool.stop();
+  }
+
+  Collection<SubmitRecord> evaluate() throws RuleEvalException {
+    try (JsRuntimePool.Lease lease = pool.lease(scriptId)) {
+      if (!lease.isLoaded()) {
+        lease.load(script, "bench:/rules.js");
+      }
+      return JsRuleEngine.evaluateRule(lease.runtime(), new BenchmarkChange(cd));
+    }
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import com.eclipsesource.v8.V8;
+import com.eclipsesource.v8.V8Array;
+import com.eclipsesource.v8.V8Object;
+import com.google.gerrit.common.data.SubmitRecord;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Converts the requirements returned by the rules to submit records. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseResultsBenchmark {
+  @Param({"1", "10", "100"})
+  public int requirements;
+
+  private V8 v8;
+  private V8Array v8Requirements;
+
+  @Setup
+  public void setUp() {
+    // Thread-scoped state is set up by the benchmark thread, which then owns the runtime.
+    v8 = V8.createV8Runtime();
+    v8Requirements = new V8Array(v8);
+    for (int i = 0; i < requirements; i++) {
+      V8Object requirement = new V8Object(v8);
+      requirement.add("description", "Requirement " + i);
+      requirement.add("is_met", i % 2 == 0);
+      v8Requirements.push(requirement);
+      requirement.release();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    v8Requirements.release();
+    v8.release();
+  }
+
+  @Benchmark
+  public Collection<SubmitRecord> parseResults() {
+    return JsRuleEngine.parseResults(v8Requirements);
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.rhino;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.BenchmarkChange;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.BenchmarkRules;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Evaluates rules.js with Rhino. Same rules, changes and thread counts as {@code
+ * JsEvaluationBenchmark}, so that the throughput and the latency percentiles of both engines can be
+ * compared.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class RhinoEvaluationBenchmark {
+  @State(Scope.Benchmark)
+  public static class RulesState {
+    @Param({"trivial", "heavy"})
+    public String rules;
+
+    @Param({"100"})
+    public int votes;
+
+    private RhinoRuntime runtime;
+    private String script;
+    private ObjectId scriptId;
+    private ChangeData cd;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      script = BenchmarkRules.get(rules);
+      try (ObjectInserter.Formatter f = new ObjectInserter.Formatter()) {
+        scriptId = f.idFor(Constants.OBJ_BLOB, script.getBytes(UTF_8));
+      }
+      runtime = new RhinoRuntime(CacheBuilder.newBuilder().build());
+      cd = BenchmarkChange.changeWithVotes(votes);
+    }
+
+    Collection<SubmitRecord> evaluate() throws IOException {
+      return runtime.evaluate(
+          scriptId, () -> script, "bench:/rules.js", new BenchmarkChange(cd), 1000);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Collection<SubmitRecord> evaluate1Thread(RulesState state) throws IOException {
+    return state.evaluate();
+  }
+
+  @Benchmark
+  @Threads(2)
+  public Collection<SubmitRecord> evaluate2Threads(RulesState state) throws IOException {
+    return state.evaluate();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Collection<SubmitRecord> evaluate4Threads(RulesState state) throws IOException {
+    return state.evaluate();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Collection<SubmitRecord> evaluateMaxThreads(RulesState state) throws IOException {
+    return state.evaluate();
+  }
+}
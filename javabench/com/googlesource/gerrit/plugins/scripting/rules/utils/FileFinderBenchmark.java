@@ -0,0 +1,96 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.utils;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Reads rules.js from refs/meta/config, as every evaluation does. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileFinderBenchmark {
+  private static final Project.NameKey PROJECT = new Project.NameKey("bench");
+
+  @Param({"memory", "disk"})
+  public String storage;
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private Path dir;
+  private Repository git;
+  private FileCache fileCache;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    if (storage.equals("disk")) {
+      dir = Files.createTempDirectory("scripting-rules-bench");
+      git = new FileRepository(dir.toFile());
+      git.create(true);
+    } else {
+      git = new InMemoryRepository(new DfsRepositoryDescription("bench"));
+    }
+
+    TestRepository<Repository> repo = new TestRepository<>(git);
+    String rules = Strings.repeat("// Some rules\n", 500);
+    repo.update(
+        RefNames.REFS_CONFIG,
+        repo.commit().add("rules.js", rules).add("project.config", "[project]\n"));
+
+    fileCache = cached ? new FileCache(CacheBuilder.newBuilder().build()) : null;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    git.close();
+    if (dir != null) {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  @Benchmark
+  public String readRules() throws IOException {
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache)) {
+      fileFinder.pointAtMetaConfig();
+      return fileFinder.readFile("rules.js");
+    }
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.api;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class DryRunTest {
+  @Test
+  public void latencyOfNoChange() {
+    DryRun.LatencyInfo latency = DryRun.latency(new ArrayList<>());
+    assertThat(latency.p50).isEqualTo(0);
+    assertThat(latency.max).isEqualTo(0);
+  }
+
+  @Test
+  public void latencyPercentilesAreNearestRank() {
+    List<DryRun.ChangeResult> results = new ArrayList<>();
+    for (int i = 1; i <= 200; i++) {
+      results.add(result(i * 10));
+    }
+    Collections.shuffle(results);
+
+    DryRun.LatencyInfo latency = DryRun.latency(results);
+    assertThat(latency.p50).isEqualTo(1000);
+    assertThat(latency.p90).isEqualTo(1800);
+    assertThat(latency.p99).isEqualTo(1980);
+    assertThat(latency.max).isEqualTo(2000);
+  }
+
+  @Test
+  public void latencyOfASingleChange() {
+    DryRun.LatencyInfo latency = DryRun.latency(Collections.singletonList(result(42)));
+    assertThat(latency.p50).isEqualTo(42);
+    assertThat(latency.p99).isEqualTo(42);
+    assertThat(latency.max).isEqualTo(42);
+  }
+
+  private static DryRun.ChangeResult result(long latencyMicros) {
+    DryRun.ChangeResult result = new DryRun.ChangeResult();
+    result.latencyMicros = latencyMicros;
+    return result;
+  }
+}
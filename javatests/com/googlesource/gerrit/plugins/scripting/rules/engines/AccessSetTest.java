@@ -0,0 +1,84 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import org.junit.Test;
+
+public class AccessSetTest {
+  @Test
+  public void membersOfTheChangeAreFound() {
+    AccessSet accessSet =
+        AccessSet.analyze(
+            "function submit_rule(change, requirements) {\n"
+                + "  if (change.wip || change['subject'].startsWith('WIP')) {\n"
+                + "    requirements.push({ status: 'NOT_READY', type: 'wip' });\n"
+                + "  }\n"
+                + "}\n");
+
+    assertThat(accessSet)
+        .isEqualTo(AccessSet.of(ImmutableSet.of(Field.WORK_IN_PROGRESS, Field.SUBJECT)));
+    assertThat(accessSet.contains(Field.VOTES)).isFalse();
+  }
+
+  @Test
+  public void emailsImplyVotes() {
+    AccessSet accessSet =
+        AccessSet.analyze(
+            "function submit_rule(change, requirements) {\n"
+                + "  var votes = change.findVotes('Code-Review', 2);\n"
+                + "  votes.filter(v => v.account.hasEmail('lead@example.com'));\n"
+                + "}\n");
+
+    assertThat(accessSet).isEqualTo(AccessSet.of(ImmutableSet.of(Field.EMAILS)));
+    assertThat(accessSet.contains(Field.VOTES)).isTrue();
+  }
+
+  @Test
+  public void enumerationsReadAllTheFields() {
+    assertThat(AccessSet.analyze("for (var key in change) { log(change[key]); }"))
+        .isEqualTo(AccessSet.ALL);
+    assertThat(AccessSet.analyze("var copy = Object.assign({}, change);"))
+        .isEqualTo(AccessSet.ALL);
+    assertThat(AccessSet.analyze("var copy = { ...change };")).isEqualTo(AccessSet.ALL);
+  }
+
+  @Test
+  public void differentSetsHaveDifferentBits() {
+    assertThat(AccessSet.of(ImmutableSet.of()).bits()).isEqualTo(0);
+    assertThat(AccessSet.of(ImmutableSet.of(Field.SUBJECT)).bits())
+        .isNotEqualTo(AccessSet.of(ImmutableSet.of(Field.BRANCH)).bits());
+    assertThat(AccessSet.ALL.bits()).isEqualTo((1 << Field.values().length) - 1);
+  }
+
+  @Test
+  public void fromBits() {
+    AccessSet accessSet = AccessSet.of(ImmutableSet.of(Field.BRANCH, Field.EMAILS));
+
+    assertThat(AccessSet.fromBits(accessSet.bits())).isEqualTo(accessSet);
+    assertThat(AccessSet.fromBits(AccessSet.ALL.bits())).isEqualTo(AccessSet.ALL);
+  }
+
+  @Test
+  public void missingFields() {
+    AccessSet accessSet = AccessSet.of(ImmutableSet.of(Field.SUBJECT));
+
+    assertThat(accessSet.missing(ImmutableSet.of(Field.SUBJECT))).isEmpty();
+    assertThat(accessSet.missing(ImmutableSet.of(Field.SUBJECT, Field.AUTHOR)))
+        .containsExactly(Field.AUTHOR);
+  }
+}
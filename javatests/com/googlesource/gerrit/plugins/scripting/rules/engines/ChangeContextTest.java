@@ -0,0 +1,215 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.query.change.ChangeData;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeContextTest {
+  private static final Account.Id ALICE = new Account.Id(1000);
+  private static final Account.Id BOB = new Account.Id(1001);
+  private static final Account.Id CAROL = new Account.Id(1002);
+
+  private ChangeData cd;
+  private PatchSet.Id psId;
+  private FakeAccountCache accountCache;
+
+  @Before
+  public void setUp() {
+    cd = ChangeData.createForTest(new Project.NameKey("project"), new Change.Id(1), 1);
+    psId = new PatchSet.Id(cd.getId(), 1);
+    cd.currentApprovals(
+        ImmutableList.of(
+            approval(ALICE, "Code-Review", 2),
+            approval(BOB, "Code-Review", -1),
+            approval(BOB, "Verified", 1)));
+
+    accountCache = new FakeAccountCache();
+    accountCache.add(ALICE, "alice@example.com", "Alice.Smith@Example.com");
+    accountCache.add(BOB, "bob@example.com");
+    accountCache.add(CAROL, "carol@example.com");
+  }
+
+  @Test
+  public void labelsAreComparedWithoutCase() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+
+    assertThat(change.findVotes("code-review", null)).hasSize(2);
+    assertThat(change.findVotes("CODE-REVIEW", null)).hasSize(2);
+    assertThat(change.findVotes("verified", null)).hasSize(1);
+    assertThat(change.findVotes("Library-Compliance", null)).isEmpty();
+  }
+
+  @Test
+  public void votesAreFilteredByValue() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+
+    List<PatchSetApproval> approvals = change.findVotes("Code-Review", 2);
+    assertThat(approvals).hasSize(1);
+    assertThat(approvals.get(0).getAccountId()).isEqualTo(ALICE);
+    assertThat(change.findVotes("Code-Review", -1).get(0).getAccountId()).isEqualTo(BOB);
+    assertThat(change.findVotes("Code-Review", 1)).isEmpty();
+  }
+
+  @Test
+  public void valuesOutOfTheRangeOfVotesMatchNothing() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+
+    // Would match the +2 vote if the value was truncated to a short.
+    assertThat(change.findVotes("Code-Review", 2 + (1 << 16))).isEmpty();
+    assertThat(change.findVotes("Code-Review", Integer.MIN_VALUE)).isEmpty();
+  }
+
+  @Test
+  public void votesAreIndexedOnce() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+    assertThat(change.findVotes("Code-Review", null)).hasSize(2);
+
+    cd.currentApprovals(ImmutableList.of());
+
+    assertThat(change.findVotes("Code-Review", null)).hasSize(2);
+  }
+
+  @Test
+  public void votersAreLoadedTogether() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+
+    assertThat(change.hasEmail(ALICE, "alice.smith@example.com")).isTrue();
+    assertThat(change.hasEmail(BOB, "BOB@example.com")).isTrue();
+    assertThat(change.hasEmail(BOB, "alice@example.com")).isFalse();
+
+    assertThat(accountCache.batches).containsExactly(ImmutableSet.of(ALICE, BOB));
+    assertThat(accountCache.singleLookups).isEqualTo(0);
+  }
+
+  @Test
+  public void otherAccountsAreLoadedOneByOne() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+
+    assertThat(change.hasEmail(CAROL, "carol@example.com")).isTrue();
+
+    assertThat(accountCache.singleLookups).isEqualTo(1);
+  }
+
+  @Test
+  public void nullUnresolvedCommentsCountIsMemoized() throws Exception {
+    // Without lazy loading, ChangeData has no count to return.
+    cd.setLazyLoad(false);
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+    assertThat(change.unresolvedCommentsCount()).isNull();
+
+    // Loading the count again would fail: the change has no notes.
+    cd.setLazyLoad(true);
+
+    assertThat(change.unresolvedCommentsCount()).isNull();
+  }
+
+  @Test
+  public void accessedFieldsAreRecorded() throws Exception {
+    ChangeContext change = new ChangeContext(cd, null, accountCache);
+    assertThat(change.accessed()).isEmpty();
+
+    change.findVotes("Code-Review", null);
+    change.hasEmail(ALICE, "alice@example.com");
+
+    assertThat(change.accessed()).containsExactly(AccessSet.Field.VOTES, AccessSet.Field.EMAILS);
+  }
+
+  private PatchSetApproval approval(Account.Id accountId, String label, int value) {
+    return new PatchSetApproval(
+        new PatchSetApproval.Key(psId, accountId, new LabelId(label)),
+        (short) value,
+        new Timestamp(System.currentTimeMillis()));
+  }
+
+  /** Records how the accounts are looked up. */
+  private static class FakeAccountCache implements AccountCache {
+    private final AllUsersName allUsers = new AllUsersName("All-Users");
+    private final Map<Account.Id, AccountState> accounts = new HashMap<>();
+    final List<Set<Account.Id>> batches = new ArrayList<>();
+    int singleLookups;
+
+    void add(Account.Id accountId, String... emails) {
+      List<ExternalId> extIds = new ArrayList<>();
+      for (String email : emails) {
+        extIds.add(ExternalId.createEmail(accountId, email));
+      }
+      accounts.put(
+          accountId,
+          AccountState.forAccount(allUsers, new Account(accountId, new Timestamp(0)), extIds));
+    }
+
+    @Override
+    public Optional<AccountState> get(Account.Id accountId) {
+      singleLookups++;
+      return Optional.ofNullable(accounts.get(accountId));
+    }
+
+    @Override
+    public Map<Account.Id, AccountState> get(Set<Account.Id> accountIds) {
+      batches.add(ImmutableSet.copyOf(accountIds));
+      Map<Account.Id, AccountState> found = new HashMap<>();
+      for (Account.Id accountId : accountIds) {
+        if (accounts.containsKey(accountId)) {
+          found.put(accountId, accounts.get(accountId));
+        }
+      }
+      return found;
+    }
+
+    @Override
+    public AccountState getEvenIfMissing(Account.Id accountId) {
+      singleLookups++;
+      return accounts.get(accountId);
+    }
+
+    @Override
+    public Optional<AccountState> getByUsername(String username) {
+      return Optional.empty();
+    }
+
+    @Override
+    public void evict(Account.Id accountId) {
+      accounts.remove(accountId);
+    }
+
+    @Override
+    public void evictAllNoReindex() {
+      accounts.clear();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The author and the committer are read from the commit of the change, which the changes of the
+ * tests do not have: they are left out of the access sets.
+ */
+public class ChangeFingerprintTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+  private static final Change.Id CHANGE_ID = new Change.Id(1);
+  private static final PatchSet.Id PS_ID = new PatchSet.Id(CHANGE_ID, 1);
+  private static final Account.Id ALICE = new Account.Id(1000);
+
+  private ChangeData cd;
+  private Change change;
+  private FakeAccountCache accountCache;
+
+  @Before
+  public void setUp() {
+    cd = changeData(1);
+    change =
+        new Change(
+            new Change.Key("I0123456789012345678901234567890123456789"),
+            CHANGE_ID,
+            ALICE,
+            new Branch.NameKey(PROJECT, "master"),
+            new Timestamp(0));
+    change.setCurrentPatchSet(PS_ID, "Subject", "Subject");
+    accountCache = new FakeAccountCache();
+    accountCache.add(ALICE, "alice@example.com");
+  }
+
+  @Test
+  public void subjectIsHashed() throws Exception {
+    assertHashedOnlyWhenRead(
+        Field.SUBJECT, () -> change.setCurrentPatchSet(PS_ID, "Other subject", "Subject"));
+  }
+
+  @Test
+  public void branchIsHashed() throws Exception {
+    assertHashedOnlyWhenRead(Field.BRANCH, () -> cd = changeData(2));
+  }
+
+  @Test
+  public void privateFlagIsHashed() throws Exception {
+    assertHashedOnlyWhenRead(Field.PRIVATE, () -> change.setPrivate(true));
+  }
+
+  @Test
+  public void workInProgressFlagIsHashed() throws Exception {
+    assertHashedOnlyWhenRead(Field.WORK_IN_PROGRESS, () -> change.setWorkInProgress(true));
+  }
+
+  @Test
+  public void unresolvedCommentsCountIsHashed() throws Exception {
+    assertHashedOnlyWhenRead(Field.UNRESOLVED_COMMENTS, () -> cd.setUnresolvedCommentCount(3));
+  }
+
+  @Test
+  public void votesAreHashed() throws Exception {
+    assertHashedOnlyWhenRead(
+        Field.VOTES, () -> cd.currentApprovals(ImmutableList.of(approval("Code-Review", 1))));
+  }
+
+  @Test
+  public void emailsAreHashed() throws Exception {
+    assertHashedOnlyWhenRead(
+        Field.EMAILS, () -> accountCache.add(ALICE, "alice.smith@example.com"));
+  }
+
+  @Test
+  public void fingerprintsOfDifferentAccessSetsDiffer() throws Exception {
+    assertThat(fingerprint(AccessSet.of(ImmutableSet.of(Field.PRIVATE))))
+        .isNotEqualTo(fingerprint(AccessSet.of(ImmutableSet.of(Field.WORK_IN_PROGRESS))));
+  }
+
+  /**
+   * Checks that updating a field changes the fingerprint of the rules which read it, and only of
+   * them.
+   */
+  private void assertHashedOnlyWhenRead(Field field, Runnable update) throws Exception {
+    AccessSet reading = AccessSet.of(ImmutableSet.of(field));
+    EnumSet<Field> others = EnumSet.complementOf(EnumSet.of(field, Field.AUTHOR, Field.COMMITTER));
+    if (field == Field.VOTES) {
+      // Reading the emails implies reading the votes.
+      others.remove(Field.EMAILS);
+    }
+    AccessSet notReading = AccessSet.of(others);
+    HashCode readingBefore = fingerprint(reading);
+    HashCode notReadingBefore = fingerprint(notReading);
+
+    update.run();
+
+    assertThat(fingerprint(reading)).isNotEqualTo(readingBefore);
+    assertThat(fingerprint(notReading)).isEqualTo(notReadingBefore);
+  }
+
+  private HashCode fingerprint(AccessSet accessSet) throws Exception {
+    return ChangeFingerprint.of(cd, change, accountCache, accessSet);
+  }
+
+  /** Returns the change at a given patch set, with the same votes whatever the patch set. */
+  private ChangeData changeData(int patchSet) {
+    ChangeData changeData = ChangeData.createForTest(PROJECT, CHANGE_ID, patchSet);
+    changeData.setUnresolvedCommentCount(0);
+    changeData.currentApprovals(ImmutableList.of(approval("Code-Review", 2)));
+    return changeData;
+  }
+
+  private static PatchSetApproval approval(String label, int value) {
+    return new PatchSetApproval(
+        new PatchSetApproval.Key(PS_ID, ALICE, new LabelId(label)),
+        (short) value,
+        new Timestamp(0));
+  }
+
+  private static class FakeAccountCache implements AccountCache {
+    private final AllUsersName allUsers = new AllUsersName("All-Users");
+    private final Map<Account.Id, AccountState> accounts = new HashMap<>();
+
+    void add(Account.Id accountId, String... emails) {
+      List<ExternalId> extIds = new ArrayList<>();
+      for (String email : emails) {
+        extIds.add(ExternalId.createEmail(accountId, email));
+      }
+      accounts.put(
+          accountId,
+          AccountState.forAccount(allUsers, new Account(accountId, new Timestamp(0)), extIds));
+    }
+
+    @Override
+    public Optional<AccountState> get(Account.Id accountId) {
+      return Optional.ofNullable(accounts.get(accountId));
+    }
+
+    @Override
+    public Map<Account.Id, AccountState> get(Set<Account.Id> accountIds) {
+      Map<Account.Id, AccountState> found = new HashMap<>();
+      for (Account.Id accountId : accountIds) {
+        if (accounts.containsKey(accountId)) {
+          found.put(accountId, accounts.get(accountId));
+        }
+      }
+      return found;
+    }
+
+    @Override
+    public AccountState getEvenIfMissing(Account.Id accountId) {
+      return accounts.get(accountId);
+    }
+
+    @Override
+    public Optional<AccountState> getByUsername(String username) {
+      return Optional.empty();
+    }
+
+    @Override
+    public void evict(Account.Id accountId) {
+      accounts.remove(accountId);
+    }
+
+    @Override
+    public void evictAllNoReindex() {
+      accounts.clear();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.query.change.ChangeData;
+import java.sql.Timestamp;
+import org.junit.Test;
+
+public class ProfilingChangeContextTest {
+  @Test
+  public void callsAreCountedByCallback() throws Exception {
+    ChangeData cd = ChangeData.createForTest(new Project.NameKey("project"), new Change.Id(1), 1);
+    PatchSet.Id psId = new PatchSet.Id(cd.getId(), 1);
+    cd.currentApprovals(
+        ImmutableList.of(
+            new PatchSetApproval(
+                new PatchSetApproval.Key(psId, new Account.Id(1000), new LabelId("Code-Review")),
+                (short) 2,
+                new Timestamp(System.currentTimeMillis()))));
+
+    ProfilingChangeContext change = new ProfilingChangeContext(cd, null, null);
+    assertThat(change.calls()).isEmpty();
+
+    assertThat(change.findVotes("Code-Review", 2)).hasSize(1);
+    assertThat(change.findVotes("Verified", null)).isEmpty();
+    assertThat(change.calls().keySet()).containsExactly("findVotes");
+    assertThat(change.calls().get("findVotes").count()).isEqualTo(2);
+    assertThat(change.calls().get("findVotes").nanos()).isAtLeast(0L);
+    assertThat(change.totalCalls()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.project.SubmitRuleEvaluator;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RulesBreakerTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+  private static final ObjectId RULES =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final ObjectId NEW_RULES =
+      ObjectId.fromString("fedcba9876543210fedcba9876543210fedcba98");
+
+  private long now;
+  private RulesBreaker breaker;
+
+  @Before
+  public void setUp() {
+    now = 1000;
+    breaker = new RulesBreaker(3, 100, 300, () -> now);
+  }
+
+  @Test
+  public void quarantinedAfterConsecutiveFailures() {
+    fail(2);
+    breaker.succeeded(PROJECT, RULES);
+    fail(2);
+    assertThat(breaker.allow(PROJECT, RULES)).isTrue();
+    assertThat(breaker.quarantined()).isEmpty();
+
+    fail(1);
+    assertThat(breaker.allow(PROJECT, RULES)).isFalse();
+    assertThat(breaker.quarantined()).hasSize(1);
+    RulesBreaker.Quarantine quarantine = breaker.quarantined().get(0);
+    assertThat(quarantine.project).isEqualTo(PROJECT);
+    assertThat(quarantine.rulesId).isEqualTo(RULES);
+    assertThat(quarantine.failures).isEqualTo(3);
+    assertThat(quarantine.reason).isEqualTo(RulesEvaluator.TIMEOUT);
+    assertThat(quarantine.until).isEqualTo(1100);
+  }
+
+  @Test
+  public void singleProbeAfterTheBackoff() {
+    fail(3);
+    now += 100;
+
+    assertThat(breaker.allow(PROJECT, RULES)).isTrue();
+    assertThat(breaker.allow(PROJECT, RULES)).isFalse();
+
+    breaker.succeeded(PROJECT, RULES);
+    assertThat(breaker.allow(PROJECT, RULES)).isTrue();
+    assertThat(breaker.quarantined()).isEmpty();
+  }
+
+  @Test
+  public void failedProbesBackOffFurther() {
+    fail(3);
+
+    now += 100;
+    assertThat(breaker.allow(PROJECT, RULES)).isTrue();
+    fail(1);
+    assertThat(breaker.quarantined().get(0).until).isEqualTo(now + 200);
+
+    now += 200;
+    assertThat(breaker.allow(PROJECT, RULES)).isTrue();
+    fail(1);
+    // Capped by the maximum backoff.
+    assertThat(breaker.quarantined().get(0).until).isEqualTo(now + 300);
+  }
+
+  @Test
+  public void newRulesAreNotQuarantined() {
+    fail(3);
+
+    assertThat(breaker.allow(PROJECT, NEW_RULES)).isTrue();
+    breaker.failed(PROJECT, NEW_RULES, RulesEvaluator.TIMEOUT);
+    // The previous version is forgotten.
+    assertThat(breaker.quarantined()).isEmpty();
+  }
+
+  @Test
+  public void disabledWithoutThreshold() {
+    breaker = new RulesBreaker(0, 100, 300, () -> now);
+    fail(10);
+    assertThat(breaker.allow(PROJECT, RULES)).isTrue();
+  }
+
+  @Test
+  public void errorType() {
+    SubmitRecord ok = new SubmitRecord();
+    ok.status = SubmitRecord.Status.OK;
+    ok.requirements = ImmutableList.of();
+    SubmitRecord error = new SubmitRecord();
+    error.status = SubmitRecord.Status.RULE_ERROR;
+    error.requirements =
+        ImmutableList.of(
+            SubmitRequirement.builder()
+                .setFallbackText("timeout")
+                .setType(RulesEvaluator.TIMEOUT)
+                .build());
+
+    assertThat(RulesBreaker.errorType(null)).isNull();
+    assertThat(RulesBreaker.errorType(ImmutableList.of(ok))).isNull();
+    assertThat(RulesBreaker.errorType(ImmutableList.of(ok, error)))
+        .isEqualTo(RulesEvaluator.TIMEOUT);
+  }
+
+  @Test
+  public void untypedErrorsAreFailures() {
+    assertThat(
+            RulesBreaker.errorType(
+                SubmitRuleEvaluator.createRuleError("Error evaluating the rules")))
+        .isEqualTo(RulesEvaluator.UNKNOWN_ERROR);
+  }
+
+  private void fail(int times) {
+    for (int i = 0; i < times; i++) {
+      breaker.failed(PROJECT, RULES, RulesEvaluator.TIMEOUT);
+    }
+  }
+}
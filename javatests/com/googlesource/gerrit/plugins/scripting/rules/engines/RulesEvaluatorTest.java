@@ -0,0 +1,192 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRequirement;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RulesEvaluatorTest {
+  private static final String ENGINE = "test";
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+  private static final Change.Id CHANGE_ID = new Change.Id(1);
+  private static final PatchSet.Id PS_ID = new PatchSet.Id(CHANGE_ID, 1);
+
+  private ChangeData cd;
+  private Change change;
+  private RulesEvaluator evaluator;
+  private FakeRules rules;
+  private int evaluations;
+
+  @Before
+  public void setUp() {
+    cd = ChangeData.createForTest(PROJECT, CHANGE_ID, 1);
+    change =
+        new Change(
+            new Change.Key("I0123456789012345678901234567890123456789"),
+            CHANGE_ID,
+            new Account.Id(1000),
+            new Branch.NameKey(PROJECT, "master"),
+            new Timestamp(0));
+    change.setCurrentPatchSet(PS_ID, "Subject", "Subject");
+    // The rules only read the subject: neither the accounts nor the repository are needed.
+    evaluator =
+        new RulesEvaluator(
+            null,
+            new RulesBreaker(5, 1000, 10000, () -> 0L),
+            new RulesMetrics(new DisabledMetricMaker()),
+            new SubmitRecordCache(CacheBuilder.newBuilder().build()));
+    rules = new FakeRules(AccessSet.of(ImmutableSet.of(Field.SUBJECT)));
+  }
+
+  @Test
+  public void resultsAreCached() throws Exception {
+    RulesEvaluator.Evaluation evaluation = readingSubject(ok());
+
+    assertThat(status(evaluate(evaluation))).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(status(evaluate(evaluation))).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(evaluations).isEqualTo(1);
+  }
+
+  @Test
+  public void updatedChangesAreEvaluatedAgain() throws Exception {
+    RulesEvaluator.Evaluation evaluation = readingSubject(ok());
+    evaluate(evaluation);
+
+    change.setCurrentPatchSet(PS_ID, "Other subject", "Subject");
+    evaluate(evaluation);
+
+    assertThat(evaluations).isEqualTo(2);
+  }
+
+  @Test
+  public void timeoutsAreNotCached() throws Exception {
+    RulesEvaluator.Evaluation evaluation =
+        readingSubject(evaluator.timedOut(ENGINE, PROJECT, 100));
+
+    assertThat(errorType(evaluate(evaluation))).isEqualTo(RulesEvaluator.TIMEOUT);
+    assertThat(errorType(evaluate(evaluation))).isEqualTo(RulesEvaluator.TIMEOUT);
+    assertThat(evaluations).isEqualTo(2);
+  }
+
+  @Test
+  public void exhaustedResourcesAreNotCached() throws Exception {
+    RulesEvaluator.Evaluation evaluation = readingSubject(RulesEvaluator.resourcesExhausted());
+
+    assertThat(errorType(evaluate(evaluation))).isEqualTo(RulesEvaluator.RESOURCES_EXHAUSTED);
+    assertThat(errorType(evaluate(evaluation))).isEqualTo(RulesEvaluator.RESOURCES_EXHAUSTED);
+    assertThat(evaluations).isEqualTo(2);
+  }
+
+  @Test
+  public void resultsReadingMissedFieldsAreNotCached() throws Exception {
+    RulesEvaluator.Evaluation evaluation =
+        context -> {
+          evaluations++;
+          context.subject();
+          context.isPrivate();
+          return ok();
+        };
+
+    evaluate(evaluation);
+    evaluate(evaluation);
+
+    assertThat(evaluations).isEqualTo(2);
+    assertThat(rules.checked)
+        .containsExactly(
+            ImmutableSet.of(Field.SUBJECT, Field.PRIVATE),
+            ImmutableSet.of(Field.SUBJECT, Field.PRIVATE));
+  }
+
+  private Collection<SubmitRecord> evaluate(RulesEvaluator.Evaluation evaluation)
+      throws Exception {
+    return evaluator.evaluate(ENGINE, PROJECT, rules, cd, change, () -> false, evaluation);
+  }
+
+  /** Returns an evaluation which reads the subject of the change, and returns given records. */
+  private RulesEvaluator.Evaluation readingSubject(Collection<SubmitRecord> records) {
+    return context -> {
+      evaluations++;
+      context.subject();
+      return records;
+    };
+  }
+
+  private static Collection<SubmitRecord> ok() {
+    SubmitRecord record = new SubmitRecord();
+    record.status = SubmitRecord.Status.OK;
+    record.requirements =
+        ImmutableList.of(
+            SubmitRequirement.builder().setFallbackText("ok").setType("rules_js").build());
+    return ImmutableList.of(record);
+  }
+
+  private static SubmitRecord.Status status(Collection<SubmitRecord> records) {
+    return Iterables.getOnlyElement(records).status;
+  }
+
+  private static String errorType(Collection<SubmitRecord> records) {
+    return Iterables.getOnlyElement(Iterables.getOnlyElement(records).requirements).type();
+  }
+
+  /** Rules whose access set is fixed, recording the fields read by their evaluations. */
+  private static class FakeRules implements RulesEvaluator.Rules {
+    private static final ObjectId ID =
+        ObjectId.fromString("0123456789012345678901234567890123456789");
+
+    private final AccessSet accessSet;
+    final List<Set<Field>> checked = new ArrayList<>();
+
+    FakeRules(AccessSet accessSet) {
+      this.accessSet = accessSet;
+    }
+
+    @Override
+    public ObjectId id() {
+      return ID;
+    }
+
+    @Override
+    public AccessSet accessSet() {
+      return accessSet;
+    }
+
+    @Override
+    public boolean checkAccessSet(AccessSet expected, Set<Field> accessed) {
+      checked.add(ImmutableSet.copyOf(accessed));
+      return expected.containsAll(accessed);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRequirement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubmitRecordCacheTest {
+  private static final ObjectId RULES =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final ObjectId NEW_RULES =
+      ObjectId.fromString("fedcba9876543210fedcba9876543210fedcba98");
+  private static final HashCode FINGERPRINT = HashCode.fromLong(1);
+  private static final HashCode NEW_FINGERPRINT = HashCode.fromLong(2);
+
+  private SubmitRecordCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new SubmitRecordCache(CacheBuilder.newBuilder().build());
+  }
+
+  @Test
+  public void resultsAreKeyedByRulesAndFingerprint() {
+    cache.put(RULES, FINGERPRINT, ImmutableList.of(record(SubmitRecord.Status.OK)));
+
+    assertThat(cache.get(RULES, FINGERPRINT).get()).hasSize(1);
+    assertThat(cache.get(NEW_RULES, FINGERPRINT).isPresent()).isFalse();
+    assertThat(cache.get(RULES, NEW_FINGERPRINT).isPresent()).isFalse();
+  }
+
+  @Test
+  public void rulesWithoutRecordsAreCached() {
+    cache.put(RULES, FINGERPRINT, null);
+
+    Optional<List<SubmitRecord>> cached = cache.get(RULES, FINGERPRINT);
+    assertThat(cached.isPresent()).isTrue();
+    assertThat(cached.get()).isEmpty();
+  }
+
+  @Test
+  public void recordsAreCopied() {
+    List<SubmitRecord> records = new ArrayList<>();
+    records.add(record(SubmitRecord.Status.OK));
+    cache.put(RULES, FINGERPRINT, records);
+    records.get(0).status = SubmitRecord.Status.NOT_READY;
+
+    SubmitRecord cached = cache.get(RULES, FINGERPRINT).get().get(0);
+    assertThat(cached.status).isEqualTo(SubmitRecord.Status.OK);
+    cached.status = SubmitRecord.Status.RULE_ERROR;
+    cached.requirements.clear();
+
+    SubmitRecord again = cache.get(RULES, FINGERPRINT).get().get(0);
+    assertThat(again.status).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(again.requirements).hasSize(1);
+  }
+
+  private static SubmitRecord record(SubmitRecord.Status status) {
+    SubmitRecord record = new SubmitRecord();
+    record.status = status;
+    record.requirements =
+        ImmutableList.of(
+            SubmitRequirement.builder().setFallbackText("ok").setType("rules_js").build());
+    return record;
+  }
+}
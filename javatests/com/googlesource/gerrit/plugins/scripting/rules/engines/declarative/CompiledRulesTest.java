@@ -0,0 +1,148 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.declarative;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.common.data.SubmitRecord.Status;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompiledRulesTest {
+  private static final String CODE_REVIEW =
+      "[requirement \"code-review\"]\n"
+          + "  description = Code-Review +2\n"
+          + "  label = Code-Review\n"
+          + "  minValue = 2\n"
+          + "  ignoreSelfApproval = true\n"
+          + "  vetoValue = -2\n";
+
+  private ChangeData cd;
+  private List<PatchSetApproval> approvals;
+
+  @Before
+  public void setUp() {
+    cd = ChangeData.createForTest(new Project.NameKey("project"), new Change.Id(1), 1);
+    approvals = new ArrayList<>();
+    cd.currentApprovals(approvals);
+  }
+
+  @Test
+  public void requirementIsMetByAVote() throws Exception {
+    vote(new Account.Id(1000), "Code-Review", 2);
+
+    assertThat(metRequirements(CODE_REVIEW)).containsExactly("Code-Review +2");
+  }
+
+  @Test
+  public void requirementIsNotMetByALowerVote() throws Exception {
+    vote(new Account.Id(1000), "code-review", 1);
+
+    assertThat(metRequirements(CODE_REVIEW)).isEmpty();
+  }
+
+  @Test
+  public void selfApprovalIsIgnored() throws Exception {
+    vote(cd.change().getOwner(), "Code-Review", 2);
+
+    assertThat(metRequirements(CODE_REVIEW)).isEmpty();
+  }
+
+  @Test
+  public void vetoBlocksTheRequirement() throws Exception {
+    vote(new Account.Id(1000), "Code-Review", 2);
+    vote(new Account.Id(1001), "Code-Review", -2);
+
+    assertThat(metRequirements(CODE_REVIEW)).isEmpty();
+  }
+
+  @Test
+  public void workInProgressChangesCanBeRejected() throws Exception {
+    String rules = "[requirement \"ready\"]\n  allowWorkInProgress = false\n";
+    assertThat(metRequirements(rules)).containsExactly("ready");
+
+    cd.change().setWorkInProgress(true);
+    assertThat(metRequirements(rules)).isEmpty();
+  }
+
+  @Test
+  public void emptyFileHasNoOpinion() throws Exception {
+    assertThat(CompiledRules.compile("").evaluate(cd, cd.change())).isNull();
+  }
+
+  @Test(expected = ConfigInvalidException.class)
+  public void unknownKeyIsRejected() throws Exception {
+    CompiledRules.compile("[requirement \"typo\"]\n  lable = Code-Review\n");
+  }
+
+  @Test(expected = ConfigInvalidException.class)
+  public void requirementWithoutConditionIsRejected() throws Exception {
+    CompiledRules.compile("[requirement \"empty\"]\n  description = Nothing\n");
+  }
+
+  @Test
+  public void invalidRulesReturnARuleError() throws Exception {
+    Collection<SubmitRecord> records = CompiledRules.invalid("broken").evaluate(cd, cd.change());
+
+    assertThat(records).hasSize(1);
+    SubmitRecord record = records.iterator().next();
+    assertThat(record.status).isEqualTo(Status.RULE_ERROR);
+    assertThat(record.requirements.get(0).type()).isEqualTo(CompiledRules.INVALID_RULES);
+  }
+
+  @Test
+  public void accessSetHasTheFieldsReadByTheConditions() throws Exception {
+    String rules = CODE_REVIEW + "[requirement \"ready\"]\n  maxUnresolvedComments = 0\n";
+
+    assertThat(CompiledRules.compile(rules).accessSet())
+        .isEqualTo(AccessSet.of(EnumSet.of(Field.VOTES, Field.UNRESOLVED_COMMENTS)));
+  }
+
+  private void vote(Account.Id accountId, String label, int value) {
+    approvals.add(
+        new PatchSetApproval(
+            new PatchSetApproval.Key(
+                new PatchSet.Id(cd.getId(), 1), accountId, new LabelId(label)),
+            (short) value,
+            new Timestamp(System.currentTimeMillis())));
+  }
+
+  private List<String> metRequirements(String rules) throws Exception {
+    Collection<SubmitRecord> records = CompiledRules.compile(rules).evaluate(cd, cd.change());
+    return records
+        .stream()
+        .filter(r -> r.status == Status.OK)
+        .flatMap(r -> r.requirements.stream())
+        .map(r -> r.fallbackText())
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.AccessSet.Field;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class InheritedRulesTest {
+  @Test
+  public void serializedRulesKeepTheirAccessSet() {
+    InheritedRules rules =
+        new InheritedRules(
+            "function submit_rule(change) { return change.subject; }", "p:/rules.js");
+    rules.checkAccessSet(rules.accessSet(), ImmutableSet.of(Field.SUBJECT, Field.AUTHOR));
+
+    InheritedRules copy =
+        InheritedRules.Serializer.INSTANCE.deserialize(
+            InheritedRules.Serializer.INSTANCE.serialize(rules));
+
+    assertThat(copy.id()).isEqualTo(rules.id());
+    assertThat(copy.name()).isEqualTo(rules.name());
+    assertThat(copy.script()).isEqualTo(rules.script());
+    assertThat(copy.accessSet()).isEqualTo(AccessSet.ALL);
+  }
+
+  @Test
+  public void missedFieldsWidenTheAccessSetToAll() {
+    InheritedRules rules =
+        new InheritedRules(
+            "function submit_rule(change) { return change.subject; }", "p:/rules.js");
+    AccessSet analyzed = rules.accessSet();
+
+    assertThat(rules.checkAccessSet(analyzed, ImmutableSet.of(Field.SUBJECT))).isTrue();
+    assertThat(rules.accessSet()).isEqualTo(analyzed);
+
+    assertThat(rules.checkAccessSet(analyzed, ImmutableSet.of(Field.SUBJECT, Field.PRIVATE)))
+        .isFalse();
+    assertThat(rules.accessSet()).isEqualTo(AccessSet.ALL);
+  }
+
+  @Test
+  public void longScriptsAreSerialized() {
+    InheritedRules rules = new InheritedRules(Strings.repeat("// é\n", 20000), "p:/rules.js");
+
+    InheritedRules copy =
+        InheritedRules.Serializer.INSTANCE.deserialize(
+            InheritedRules.Serializer.INSTANCE.serialize(rules));
+
+    assertThat(copy.script()).isEqualTo(rules.script());
+    assertThat(copy.accessSet()).isEqualTo(AccessSet.of(ImmutableSet.of()));
+  }
+
+  @Test
+  public void chainKeysAreSerialized() {
+    RulesResolver.ChainKey key =
+        new RulesResolver.ChainKey(
+            ImmutableList.of(new Project.NameKey("All-Projects"), new Project.NameKey("p")),
+            ImmutableList.of(
+                ObjectId.fromString("0123456789012345678901234567890123456789"),
+                ObjectId.fromString("fedcba9876543210fedcba9876543210fedcba98")));
+
+    assertThat(
+            RulesResolver.ChainKey.Serializer.INSTANCE.deserialize(
+                RulesResolver.ChainKey.Serializer.INSTANCE.serialize(key)))
+        .isEqualTo(key);
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.eclipsesource.v8.V8ScriptCompilationException;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JsRuntimePoolTest {
+  private static final ObjectId SCRIPT_ID =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+
+  /** Met unless a previous evaluation left its global behind. */
+  private static final String RULES =
+      "function submit_rule(change, requirements) {\n"
+          + "  requirements.push(new Requirement(typeof leaked === 'undefined', 'clean'));\n"
+          + "  leaked = true;\n"
+          + "}";
+
+  private JsRuntimePool pool;
+
+  @Before
+  public void setUp() {
+    pool =
+        new JsRuntimePool(
+            new JsEngineConfig(new Config(), null, "scripted-rules"),
+            new JsMetrics(new DisabledMetricMaker()),
+            new DisabledMetricMaker(),
+            null);
+  }
+
+  @After
+  public void tearDown() {
+    pool.stop();
+  }
+
+  @Test
+  public void globalsDoNotLeakBetweenTheChangesOfALease() throws Exception {
+    try (JsRuntimePool.Lease lease = pool.lease(SCRIPT_ID)) {
+      lease.load(RULES, "rules.js");
+
+      assertThat(evaluate(lease)).isEqualTo(SubmitRecord.Status.OK);
+      assertThat(lease.scrub()).isTrue();
+      assertThat(evaluate(lease)).isEqualTo(SubmitRecord.Status.OK);
+    }
+  }
+
+  @Test
+  public void globalsDoNotLeakBetweenLeases() throws Exception {
+    try (JsRuntimePool.Lease lease = pool.lease(SCRIPT_ID)) {
+      lease.load(RULES, "rules.js");
+      assertThat(evaluate(lease)).isEqualTo(SubmitRecord.Status.OK);
+    }
+
+    try (JsRuntimePool.Lease lease = pool.lease(SCRIPT_ID)) {
+      assertThat(lease.isLoaded()).isTrue();
+      assertThat(evaluate(lease)).isEqualTo(SubmitRecord.Status.OK);
+    }
+  }
+
+  @Test
+  public void runtimesWhichFailedToLoadAreNotReused() throws Exception {
+    JsRuntime failed;
+    try (JsRuntimePool.Lease lease = pool.lease(SCRIPT_ID)) {
+      failed = lease.runtime();
+      try {
+        lease.load("function submit_rule(", "rules.js");
+        fail("expected V8ScriptCompilationException");
+      } catch (V8ScriptCompilationException e) {
+        // Expected.
+      }
+    }
+
+    try (JsRuntimePool.Lease lease = pool.lease(SCRIPT_ID)) {
+      assertThat(lease.runtime()).isNotSameAs(failed);
+      assertThat(lease.isLoaded()).isFalse();
+    }
+  }
+
+  private static SubmitRecord.Status evaluate(JsRuntimePool.Lease lease) {
+    // The rules do not read the change.
+    ChangeContext change = new ChangeContext(null, null, null);
+    return Iterables.getOnlyElement(JsRuleEngine.evaluateRule(lease.runtime(), change)).status;
+  }
+}
@@ -0,0 +1,239 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.eclipsesource.v8.V8ResultUndefined;
+import com.eclipsesource.v8.V8ScriptException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JsRuntimeTest {
+  private static final ObjectId SCRIPT_ID =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+
+  private JsRuntime runtime;
+  private ChangeContext change;
+
+  @Before
+  public void setUp() {
+    runtime = new JsRuntime();
+    // The rules below do not read the change.
+    change = new ChangeContext(null, null, null);
+  }
+
+  @After
+  public void tearDown() {
+    runtime.release();
+  }
+
+  @Test
+  public void returnedObjectsAreReleased() {
+    load(
+        "function submit_rule(change, requirements) {\n"
+            + "  requirements.push(new Requirement(true, 'ok'));\n"
+            + "  return { done: true };\n"
+            + "}");
+    int handles = runtime.v8().getObjectReferenceCount();
+
+    assertThat(JsRuleEngine.evaluateRule(runtime, change)).hasSize(1);
+    assertThat(runtime.v8().getObjectReferenceCount()).isEqualTo(handles);
+  }
+
+  @Test
+  public void invalidRequirementsAreReleased() {
+    load(
+        "function submit_rule(change, requirements) {\n"
+            + "  requirements.push({ description: 42, is_met: true });\n"
+            + "}");
+    int handles = runtime.v8().getObjectReferenceCount();
+
+    try {
+      JsRuleEngine.evaluateRule(runtime, change);
+      fail("expected V8ResultUndefined");
+    } catch (V8ResultUndefined e) {
+      // Expected.
+    }
+    assertThat(runtime.v8().getObjectReferenceCount()).isEqualTo(handles);
+  }
+
+  @Test
+  public void failingRulesReleaseTheirHandles() {
+    load("function submit_rule(change, requirements) { throw new Error('broken'); }");
+    int handles = runtime.v8().getObjectReferenceCount();
+
+    try {
+      JsRuleEngine.evaluateRule(runtime, change);
+      fail("expected V8ScriptException");
+    } catch (V8ScriptException e) {
+      // Expected.
+    }
+    assertThat(runtime.v8().getObjectReferenceCount()).isEqualTo(handles);
+  }
+
+  @Test
+  public void handlesAreRecordedWhenReturned() {
+    load("function submit_rule(change, requirements) {}");
+
+    runtime.markReturned(System.currentTimeMillis());
+
+    assertThat(runtime.handles()).isEqualTo(runtime.v8().getObjectReferenceCount());
+    assertThat(runtime.handles()).isGreaterThan(0);
+  }
+
+  @Test
+  public void builtinsAreRestored() {
+    load(
+        "function submit_rule(change, requirements) {\n"
+            + "  var pristine = !Array.prototype.tampered && !Requirement.prototype.tampered\n"
+            + "      && typeof Array.prototype.indexOf === 'function';\n"
+            + "  Array.prototype.tampered = true;\n"
+            + "  Requirement.prototype.tampered = true;\n"
+            + "  delete Array.prototype.indexOf;\n"
+            + "  JSON.stringify = function() { return '{}'; };\n"
+            + "  requirements.push(new Requirement(pristine, JSON.stringify([1])));\n"
+            + "}");
+
+    assertThat(evaluate().status).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(runtime.scrub()).isTrue();
+    assertThat(evaluate().status).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(runtime.scrub()).isTrue();
+    assertThat(runtime.v8().executeStringScript("JSON.stringify([1])")).isEqualTo("[1]");
+  }
+
+  @Test
+  public void inheritedPropertiesCanBeOverridden() {
+    load(
+        "function Version(number) { this.number = number; }\n"
+            + "Version.prototype.valueOf = function() { return this.number; };\n"
+            + "if (!Array.prototype.last) {\n"
+            + "  Array.prototype.last = function() { return this[this.length - 1]; };\n"
+            + "}\n"
+            + "function submit_rule(change, requirements) {\n"
+            + "  var label = {};\n"
+            + "  label.toString = function() { return 'Code-Review'; };\n"
+            + "  var ok = String(label) === 'Code-Review' && new Version(2) > 1\n"
+            + "      && [0, 1].last() === 1;\n"
+            + "  requirements.push(new Requirement(ok, '[1]'));\n"
+            + "}");
+
+    assertPristine(evaluate());
+    assertThat(runtime.scrub()).isTrue();
+    assertPristine(evaluate());
+  }
+
+  @Test
+  public void changeApiIsFrozen() {
+    load(
+        "function submit_rule(change, requirements) {\n"
+            + "  var proto = Object.getPrototypeOf(change);\n"
+            + "  var pristine = !proto.tampered && !change.findVotes.tampered;\n"
+            + "  proto.tampered = true;\n"
+            + "  change.findVotes.tampered = true;\n"
+            + "  requirements.push(new Requirement(pristine, '[1]'));\n"
+            + "}");
+
+    assertPristine(evaluate());
+    assertThat(runtime.scrub()).isTrue();
+    assertPristine(evaluate());
+  }
+
+  @Test
+  public void topLevelStateIsNotShared() {
+    load(
+        "var seen = {};\n"
+            + "var count = 0;\n"
+            + "var next = (function() {\n"
+            + "  var calls = 0;\n"
+            + "  return function() { return ++calls; };\n"
+            + "})();\n"
+            + "function submit_rule(change, requirements) {\n"
+            + "  var pristine = !seen.change && ++count === 1 && next() === 1;\n"
+            + "  seen.change = true;\n"
+            + "  requirements.push(new Requirement(pristine, '[1]'));\n"
+            + "}");
+
+    assertPristine(evaluate());
+    assertThat(runtime.scrub()).isTrue();
+    assertPristine(evaluate());
+  }
+
+  @Test
+  public void missingSubmitRuleFails() {
+    load("var rules = {};");
+
+    try {
+      evaluate();
+      fail("expected V8ScriptException");
+    } catch (V8ScriptException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void childrenCannotDropTheRequirementsOfTheirParents() {
+    InheritedRules rules =
+        RulesResolver.bundle(
+            ImmutableList.of(
+                standalone(
+                    "function submit_rule(change, requirements) {\n"
+                        + "  requirements.push(new Requirement(false, 'parent'));\n"
+                        + "}"),
+                standalone(
+                    "function submit_rule(change, requirements) {\n"
+                        + "  requirements.length = 0;\n"
+                        + "  requirements.push(new Requirement(true, 'child'));\n"
+                        + "}")),
+            "rules.js");
+    load(rules.script());
+
+    Map<SubmitRecord.Status, String> requirements = new HashMap<>();
+    for (SubmitRecord record : JsRuleEngine.evaluateRule(runtime, change)) {
+      requirements.put(record.status, Iterables.getOnlyElement(record.requirements).fallbackText());
+    }
+    assertThat(requirements)
+        .containsExactly(SubmitRecord.Status.NOT_READY, "parent", SubmitRecord.Status.OK, "child");
+  }
+
+  private static RulesModules.Graph standalone(String source) {
+    return new RulesModules.Graph(
+        "rules.js",
+        ImmutableMap.of("rules.js", RulesModules.parse(source)),
+        ImmutableMap.of("rules.js", ImmutableMap.of()));
+  }
+
+  private void assertPristine(SubmitRecord record) {
+    assertThat(record.status).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(record.requirements.get(0).fallbackText()).isEqualTo("[1]");
+  }
+
+  private SubmitRecord evaluate() {
+    return Iterables.getOnlyElement(JsRuleEngine.evaluateRule(runtime, change));
+  }
+
+  private void load(String script) {
+    runtime.load(SCRIPT_ID, script, "rules.js");
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JsWatchdogTest {
+  private static final int EVALUATORS = 8;
+  private static final int EVALUATIONS = 2000;
+
+  private JsWatchdog watchdog;
+
+  @Before
+  public void setUp() {
+    watchdog = new JsWatchdog();
+  }
+
+  @After
+  public void tearDown() {
+    watchdog.stop();
+  }
+
+  @Test
+  public void finishedEvaluationIsNotTerminated() throws Exception {
+    AtomicInteger timeouts = new AtomicInteger();
+    JsWatchdog.Watch watch = watchdog.watch(50, timeouts::incrementAndGet);
+
+    assertThat(watch.finish()).isTrue();
+    Thread.sleep(100);
+
+    assertThat(watch.expired()).isFalse();
+    assertThat(timeouts.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void finishedEvaluationsDoNotKeepTheirDeadline() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(watchdog.watch(60_000, () -> {}).finish()).isTrue();
+    }
+
+    assertThat(watchdog.pendingDeadlines()).isEqualTo(0);
+  }
+
+  @Test
+  public void slowEvaluationIsTerminated() throws Exception {
+    CountDownLatch terminated = new CountDownLatch(1);
+    JsWatchdog.Watch watch = watchdog.watch(10, terminated::countDown);
+
+    assertThat(terminated.await(5, SECONDS)).isTrue();
+    assertThat(watch.expired()).isTrue();
+    assertThat(watch.finish()).isFalse();
+  }
+
+  @Test
+  public void threadCountStaysFlatUnderConcurrentEvaluations() throws Exception {
+    // Make sure the scheduler thread is started before taking the baseline.
+    watchdog.watch(0, () -> {}).finish();
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    int baseline = threads.getThreadCount();
+    threads.resetPeakThreadCount();
+
+    AtomicInteger timeouts = new AtomicInteger();
+    ExecutorService evaluators = Executors.newFixedThreadPool(EVALUATORS);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < EVALUATIONS; i++) {
+        results.add(
+            evaluators.submit(
+                () -> {
+                  JsWatchdog.Watch watch = watchdog.watch(300, timeouts::incrementAndGet);
+                  assertThat(watch.finish()).isTrue();
+                }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      evaluators.shutdown();
+    }
+
+    assertThat(timeouts.get()).isEqualTo(0);
+    // Only the evaluating threads were added, no thread was created per evaluation.
+    assertThat(threads.getPeakThreadCount()).isAtMost(baseline + EVALUATORS);
+  }
+}
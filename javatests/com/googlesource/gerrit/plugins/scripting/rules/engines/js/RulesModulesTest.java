@@ -0,0 +1,137 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.reviewdb.client.Project;
+import com.googlesource.gerrit.plugins.scripting.rules.utils.FileFinder;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RulesModulesTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("test_repo");
+
+  private Repository git;
+  private TestRepository<Repository> repo;
+  private Cache<ObjectId, RulesModules.Module> cache;
+  private RulesModules rulesModules;
+
+  @Before
+  public void setUp() throws Exception {
+    git = new InMemoryRepository(new DfsRepositoryDescription("test_repo"));
+    repo = new TestRepository<>(git);
+    cache = CacheBuilder.newBuilder().recordStats().build();
+    rulesModules = new RulesModules(cache);
+  }
+
+  @After
+  public void tearDown() {
+    git.close();
+  }
+
+  @Test
+  public void parseFindsTheRequiredModules() {
+    RulesModules.Module module =
+        RulesModules.parse(
+            "var a = require('./a');\n"
+                + "var b = require (\"lib/b.js\");\n"
+                + "var c = other.require('c');\n"
+                + "var d = require(name);\n"
+                + "var e = require('./a');\n");
+    assertThat(module.requests).containsExactly("./a", "lib/b.js").inOrder();
+  }
+
+  @Test
+  public void resolveIsRelativeToTheRequiringFile() {
+    assertThat(RulesModules.resolve("rules.js", "./a")).isEqualTo("a.js");
+    assertThat(RulesModules.resolve("lib/a.js", "./b.js")).isEqualTo("lib/b.js");
+    assertThat(RulesModules.resolve("lib/a.js", "../c")).isEqualTo("c.js");
+    assertThat(RulesModules.resolve("lib/a.js", "/d")).isEqualTo("d.js");
+    assertThat(RulesModules.resolve("lib/a.js", "../../e")).isNull();
+  }
+
+  @Test
+  public void loadFollowsTheRequires() throws Exception {
+    repo.update(
+        "master",
+        repo.commit()
+            .add("rules.js", "var a = require('./lib/a'); require('./missing');")
+            .add("lib/a.js", "module.exports = require('./b');")
+            .add("lib/b.js", "module.exports = require('../lib/a');"));
+
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, null)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      RulesModules.Graph graph = rulesModules.load(fileFinder, "rules.js");
+
+      assertThat(graph.modules.keySet())
+          .containsExactly("rules.js", "lib/a.js", "lib/b.js")
+          .inOrder();
+      assertThat(graph.resolutions)
+          .containsExactly(
+              "rules.js", ImmutableMap.of("./lib/a", "lib/a.js"),
+              "lib/a.js", ImmutableMap.of("./b", "lib/b.js"),
+              "lib/b.js", ImmutableMap.of("../lib/a", "lib/a.js"));
+      assertThat(graph.isStandalone()).isFalse();
+    }
+  }
+
+  @Test
+  public void unchangedModulesAreNotParsedAgain() throws Exception {
+    String rules = "require('./a'); require('./b');";
+    repo.update(
+        "master",
+        repo.commit().add("rules.js", rules).add("a.js", "// a").add("b.js", "// b"));
+    load();
+    assertThat(cache.stats().missCount()).isEqualTo(3);
+
+    repo.update(
+        "master",
+        repo.commit().add("rules.js", rules).add("a.js", "// a").add("b.js", "// edited"));
+    load();
+    assertThat(cache.stats().missCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void missingOrEmptyRulesHaveNoGraph() throws Exception {
+    repo.update("master", repo.commit().add("other.js", "content"));
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, null)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      assertThat(rulesModules.load(fileFinder, "rules.js")).isNull();
+    }
+
+    repo.update("master", repo.commit().add("rules.js", ""));
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, null)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      assertThat(rulesModules.load(fileFinder, "rules.js")).isNull();
+    }
+  }
+
+  private void load() throws Exception {
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, null)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      assertThat(rulesModules.load(fileFinder, "rules.js")).isNotNull();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.js;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.reviewdb.client.Project;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RulesResolverTest {
+  private static final Project.NameKey ALL_PROJECTS = new Project.NameKey("All-Projects");
+  private static final Project.NameKey PARENT = new Project.NameKey("parent");
+  private static final Project.NameKey CHILD = new Project.NameKey("parent/child");
+  private static final Project.NameKey OTHER = new Project.NameKey("other");
+
+  private Cache<RulesResolver.ChainKey, ObjectId> chains;
+  private RulesResolver resolver;
+
+  @Before
+  public void setUp() {
+    chains = CacheBuilder.newBuilder().build();
+    // Only the chains are needed to find the children.
+    resolver = new RulesResolver(null, null, null, null, null, chains, null);
+  }
+
+  @Test
+  public void cachedChildrenAreTheProjectsEndingChainsThroughTheProject() {
+    cache(ALL_PROJECTS);
+    cache(ALL_PROJECTS, PARENT);
+    cache(ALL_PROJECTS, PARENT, CHILD);
+    cache(ALL_PROJECTS, OTHER);
+
+    assertThat(resolver.cachedChildren(ALL_PROJECTS)).containsExactly(PARENT, CHILD, OTHER);
+    assertThat(resolver.cachedChildren(PARENT)).containsExactly(CHILD);
+    assertThat(resolver.cachedChildren(CHILD)).isEmpty();
+  }
+
+  private void cache(Project.NameKey... projects) {
+    ImmutableList.Builder<ObjectId> revisions = ImmutableList.builder();
+    for (int i = 0; i < projects.length; i++) {
+      revisions.add(ObjectId.zeroId());
+    }
+    chains.put(
+        new RulesResolver.ChainKey(ImmutableList.copyOf(projects), revisions.build()),
+        ObjectId.zeroId());
+  }
+}
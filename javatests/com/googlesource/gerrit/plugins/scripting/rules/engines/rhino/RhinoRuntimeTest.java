@@ -0,0 +1,116 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.scripting.rules.engines.rhino;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.googlesource.gerrit.plugins.scripting.rules.engines.ChangeContext;
+import java.io.IOException;
+import java.util.Collection;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.RhinoException;
+
+public class RhinoRuntimeTest {
+  private static final ObjectId SCRIPT_ID =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+
+  private static final long TIMEOUT_MS = 60000;
+
+  private RhinoRuntime runtime;
+  private ChangeContext change;
+
+  @Before
+  public void setUp() {
+    runtime = new RhinoRuntime(CacheBuilder.newBuilder().build());
+    // The rules below do not call the change.
+    change = new ChangeContext(null, null, null);
+  }
+
+  @Test
+  public void globalsDoNotLeakBetweenEvaluations() throws Exception {
+    String rules =
+        "function submit_rule(change, requirements) {\n"
+            + "  requirements.push(new Requirement(typeof leaked === 'undefined', 'clean'));\n"
+            + "  leaked = true;\n"
+            + "}";
+
+    assertThat(status(evaluate(rules, TIMEOUT_MS))).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(status(evaluate(rules, TIMEOUT_MS))).isEqualTo(SubmitRecord.Status.OK);
+  }
+
+  @Test
+  public void builtinsAndPrototypesAreFrozen() throws Exception {
+    String rules =
+        "function submit_rule(change, requirements) {\n"
+            + "  var proto = Object.getPrototypeOf(change);\n"
+            + "  var pristine =\n"
+            + "      !Array.prototype.tampered && !Requirement.prototype.tampered\n"
+            + "      && !proto.tampered && !change.findVotes.tampered;\n"
+            + "  try {\n"
+            + "    Array.prototype.tampered = true;\n"
+            + "  } catch (e) {\n"
+            + "    // The built-ins are sealed.\n"
+            + "  }\n"
+            + "  Requirement.prototype.tampered = true;\n"
+            + "  proto.tampered = true;\n"
+            + "  change.findVotes.tampered = true;\n"
+            + "  requirements.push(new Requirement(pristine, 'pristine'));\n"
+            + "}";
+
+    assertThat(status(evaluate(rules, TIMEOUT_MS))).isEqualTo(SubmitRecord.Status.OK);
+    assertThat(status(evaluate(rules, TIMEOUT_MS))).isEqualTo(SubmitRecord.Status.OK);
+  }
+
+  @Test
+  public void rulesOverrunningTheirDeadlineAreStopped() throws Exception {
+    try {
+      evaluate("function submit_rule(change, requirements) {\n  while (true) {}\n}", 100);
+      fail("Expected the rules to time out");
+    } catch (RhinoRuntime.RulesTimeoutError e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void depthOfTheStackIsLimited() throws Exception {
+    try {
+      evaluate(
+          "function recurse(n) {\n"
+              + "  return recurse(n + 1) + 1;\n"
+              + "}\n"
+              + "function submit_rule(change, requirements) {\n"
+              + "  recurse(0);\n"
+              + "}",
+          TIMEOUT_MS);
+      fail("Expected the rules to exceed the depth of the stack");
+    } catch (RhinoException e) {
+      assertThat(e.details()).contains("Exceeded maximum stack depth");
+    }
+  }
+
+  private Collection<SubmitRecord> evaluate(String rules, long timeoutMs) throws IOException {
+    return runtime.evaluate(SCRIPT_ID, () -> rules, "rules.js", change, timeoutMs);
+  }
+
+  private static SubmitRecord.Status status(Collection<SubmitRecord> records) {
+    return Iterables.getOnlyElement(records).status;
+  }
+}
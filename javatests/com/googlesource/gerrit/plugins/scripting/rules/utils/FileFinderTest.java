@@ -15,25 +15,37 @@
 package com.googlesource.gerrit.plugins.scripting.rules.utils;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.gerrit.reviewdb.client.Project;
 import java.io.IOException;
+import java.util.Map;
 import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
 import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
 import org.eclipse.jgit.junit.TestRepository;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.RawParseUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 public class FileFinderTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("test_repo");
+
   private Repository git;
   private TestRepository<Repository> repo;
+  private FileCache fileCache;
 
   @Before
   public void setUp() throws Exception {
     git = new InMemoryRepository(new DfsRepositoryDescription("test_repo"));
     repo = new TestRepository<>(git);
+    fileCache = new FileCache(CacheBuilder.newBuilder().recordStats().build());
   }
 
   @After
@@ -112,4 +124,126 @@ public class FileFinderTest {
       assertThat(pointingWorked).isTrue();
     }
   }
+
+  @Test
+  public void cachedFileIsReadOnce() throws Exception {
+    repo.update("master", repo.commit().add("existant-file", "content"));
+
+    for (int i = 0; i < 2; i++) {
+      try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache)) {
+        assertThat(fileFinder.pointAtMaster()).isTrue();
+        assertThat(fileFinder.readFile("existant-file")).isEqualTo("content");
+        assertThat(fileFinder.findFile("existant-file")).isNotNull();
+      }
+    }
+
+    assertThat(fileCache.stats().missCount()).isEqualTo(1);
+    assertThat(fileCache.stats().hitCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void missingFileIsCached() throws Exception {
+    repo.update("master", repo.commit().add("existant-file", "content"));
+
+    for (int i = 0; i < 2; i++) {
+      try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache)) {
+        assertThat(fileFinder.pointAtMaster()).isTrue();
+        assertThat(fileFinder.readFile("inexistant-file")).isNull();
+      }
+    }
+
+    assertThat(fileCache.stats().missCount()).isEqualTo(1);
+    assertThat(fileCache.stats().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void updatedFileIsNotServedFromCache() throws Exception {
+    repo.update("master", repo.commit().add("existant-file", "content"));
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      assertThat(fileFinder.readFile("existant-file")).isEqualTo("content");
+    }
+
+    repo.update("master", repo.commit().add("existant-file", "new content"));
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      assertThat(fileFinder.readFile("existant-file")).isEqualTo("new content");
+    }
+  }
+
+  @Test
+  public void findFilesInASingleWalk() throws Exception {
+    repo.update(
+        "master",
+        repo.commit().add("a.js", "a").add("dir/b.js", "b").add("dir/sub/c.js", "c").add("d", "d"));
+
+    try (FileFinder fileFinder = new FileFinder(git)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      Map<String, ObjectId> ids =
+          fileFinder.findFiles(ImmutableList.of("a.js", "dir/sub/c.js", "missing.js"));
+      assertThat(ids.keySet()).containsExactly("a.js", "dir/sub/c.js");
+      assertThat(ids.get("dir/sub/c.js")).isEqualTo(fileFinder.findFile("dir/sub/c.js"));
+    }
+  }
+
+  @Test
+  public void readFilesUsesTheCache() throws Exception {
+    repo.update("master", repo.commit().add("a.js", "a").add("b.js", "b"));
+
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      assertThat(fileFinder.readFile("a.js")).isEqualTo("a");
+
+      Map<String, String> contents =
+          fileFinder.readFiles(ImmutableList.of("a.js", "b.js", "missing.js"));
+      assertThat(contents).containsExactly("a.js", "a", "b.js", "b");
+      assertThat(fileFinder.readFile("b.js")).isEqualTo("b");
+      assertThat(fileFinder.readFile("missing.js")).isNull();
+    }
+
+    // a.js is served from the cache, and the files read together are cached for the later reads.
+    assertThat(fileCache.stats().hitCount()).isEqualTo(3);
+    assertThat(fileCache.stats().missCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void tooLargeBlobIsNotRead() throws Exception {
+    repo.update("master", repo.commit().add("large-file", "0123456789"));
+
+    try (FileFinder fileFinder = new FileFinder(git, null, null, 4)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      ObjectId id = fileFinder.findFile("large-file");
+      try {
+        fileFinder.readBlob(id);
+        fail("expected IOException");
+      } catch (IOException e) {
+        assertThat(e).hasMessageThat().contains("larger than 4 bytes");
+      }
+
+      try (ObjectStream stream = fileFinder.openBlob(id)) {
+        assertThat(stream.getSize()).isEqualTo(10);
+        assertThat(RawParseUtils.decode(ByteStreams.toByteArray(stream))).isEqualTo("0123456789");
+      }
+    }
+  }
+
+  @Test
+  public void tooLargeBlobIsFoundWithTheCache() throws Exception {
+    repo.update("master", repo.commit().add("large-file", "0123456789"));
+
+    try (FileFinder fileFinder = new FileFinder(git, PROJECT, fileCache, 4)) {
+      assertThat(fileFinder.pointAtMaster()).isTrue();
+      ObjectId id = fileFinder.findFile("large-file");
+      assertThat(id).isNotNull();
+      assertThat(fileFinder.findFile("large-file")).isEqualTo(id);
+      assertThat(fileFinder.findFiles(ImmutableList.of("large-file")))
+          .containsExactly("large-file", id);
+      try {
+        fileFinder.readFile("large-file");
+        fail("expected IOException");
+      } catch (IOException e) {
+        assertThat(e).hasMessageThat().contains("larger than 4 bytes");
+      }
+    }
+  }
 }
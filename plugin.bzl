@@ -1,3 +1,3 @@
 SELF_PREFIX = "//plugins/scripting-rules/java/com/googlesource/gerrit/plugins/scripting/rules"
 
-ENGINES_TO_ENABLE = ["js"]
+ENGINES_TO_ENABLE = ["declarative", "js", "rhino"]